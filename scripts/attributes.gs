@@ -36,7 +36,7 @@ endif
 'q attr'
 rc = write(outfile, result, append)
 
-'quit'
+return
 * end of script
 
 
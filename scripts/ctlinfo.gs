@@ -15,12 +15,12 @@ gopen(dataset,1)
 
 if (rc!=0)
   say "error: dummy CTL feature not supported by GrADS executable"
-  'quit'
+  return
 endif
 
 rc = write(output, result)
 
-'quit'
+return
 
 * end of script
 
@@ -54,7 +54,7 @@ endif
 
 if (shortname = 'shortname')
   say 'error: invalid variable ' varname
-  'quit'
+  return
 endif
 say shortname' start='start' stop='stop
 
@@ -82,7 +82,7 @@ while (i <= stop)
           value = subwrd(line2, 1)
         else
           say 'error: invalid print output for 'shortname' = 'i
-          'quit'
+          return
         endif
       endif
     endif
@@ -97,7 +97,7 @@ while (i <= stop)
   i = i + 1
 endwhile
 rc = close(outfile)
-'quit'
+return
 * end of script
 
 
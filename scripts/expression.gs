@@ -62,7 +62,7 @@ while (i<=dnum)
   gopen(_dset.i, i)
   if (rc!=0) 
     say "error: can't open dataset "_dset.i
-    'quit'
+    return
   endif
   i = i + 1
 endwhile
@@ -75,7 +75,7 @@ result_size = size()
 if (sizelimit > 0) 
   if (result_size > sizelimit) 
     say 'error: result size exceeded ' sizelimit ' byte limit'
-    'quit'
+    return
   endif 
 endif
 
@@ -97,7 +97,7 @@ while (ee <= _e2)
       'd '_expr
       if (rc!=0) 
         say "error: Invalid expression -- display failed"
-        'quit'
+        return
       endif
       dres = result
       zz = zz + 1
@@ -124,7 +124,7 @@ while (i<50)
 endwhile
 if (i=50) 
   say "error: More than 50 lines of statistical output from display of expression"
-  'quit'
+  return
 endif
 
 _vdim1 = subwrd(rec,3)  ;* gets the 1st varying dimension of the 2D display
@@ -138,7 +138,7 @@ if (_vdim1=-1 & _vdim2=-1)
 * make sure X and Y are fixed
   if ((_xvaries) | (_yvaries))
     say "error: logic error 1 in expression.gs"
-    'quit'
+    return
   endif
 else
   if (_vdim2 = -1) 
@@ -148,7 +148,7 @@ else
         _xrec = _rec1
       else
         say "error: logic error 2 in expression.gs"
-        'quit'
+        return
       endif
     else
 *     make sure X is fixed and Y is varying
@@ -156,7 +156,7 @@ else
         _yrec = _rec1
       else
         say "error: logic error 3 in expression.gs"
-        'quit'
+        return
       endif
     endif
   else
@@ -166,7 +166,7 @@ else
       _yrec = _rec2
     else
       say "error: logic error 4 in expression.gs"
-      'quit'
+      return
     endif
   endif
 endif
@@ -188,7 +188,7 @@ rc = write (_octl,'result '_zsize' 99 Result of Expression')
 rc = write (_octl,'endvars')
 
 say "GrADS server-side analysis expression evaluation was a success!"
-'quit'
+return
 
 
 * * * END OF MAIN SCRIPT * * * 
@@ -0,0 +1,12 @@
+* Copyright (C) 2000-2021 by George Mason University.
+* Authored by Joe Wielgosz and maintained by Jennifer Adams.
+* See file COPYRIGHT for more information.
+
+* Script used to mark the end of a task, when the server sends
+* commands to a GrADS process that it keeps running between tasks
+
+function sentinel (args)
+say 'gds task complete 'args
+return
+
+* end of script
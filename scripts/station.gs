@@ -114,7 +114,7 @@ say 'display ' varstring
 'd 'varstring
 
 
-'quit'
+return
 * end of script
 
 
@@ -22,6 +22,14 @@ t_start = subwrd(args, 10)
 t_end   = subwrd(args, 11)
 e_start = subwrd(args, 12)
 e_end   = subwrd(args, 13)
+z_step  = subwrd(args, 14)
+t_step  = subwrd(args, 15)
+e_step  = subwrd(args, 16)
+if (z_step = ''); z_step = 1; endif
+if (t_step = ''); t_step = 1; endif
+if (e_step = ''); e_step = 1; endif
+steps = 0
+if (z_step > 1 | t_step > 1 | e_step > 1); steps = 1; endif
 
 xvar = 0; yvar = 0; zvar = 0; tvar = 0; evar = 0; vdim = 0;
 
@@ -45,12 +53,13 @@ say 'Y: 'y_start ' -> ' y_end' 'yvmsg
 say 'Z: 'z_start ' -> ' z_end' 'zvmsg
 say 'T: 't_start ' -> ' t_end' 'tvmsg
 say 'E: 'e_start ' -> ' e_end' 'evmsg
+say 'Steps: 'z_step' 't_step' 'e_step
 say vdim ' Varying dimensions'
 
 * Check that parameters were passed
 if ('x'%output = 'x' | 'x'%dataset = 'x' | 'x'%varname = 'x') 
   say "error: invalid arguments to subset.gs"
-  'quit'
+  return
 endif
 
 * Open data file
@@ -74,6 +83,8 @@ e_size = subwrd(size, 15)
 * When X or Y are fixed, we want GrADS to produce 
 * the X/Z or Y/Z slices and loop thru T and E.  
 * In all other cases, we just loop thru Z, T, and E. 
+* If Z, T or E has a stride, we also loop, skipping the 
+* points that aren't wanted, so they are never written.
 
 'disable fwrite'
 'set gxout fwrite'
@@ -99,8 +110,8 @@ if (xvar=0 | yvar=0)
 endif
 say 'varname='varname
 
-* More than 2 dims are varying
-if (vdim > 2) 
+* More than 2 dims are varying, or there are strides
+if (vdim > 2 | steps = 1) 
   if (xvar=0 | yvar=0) 
     'set x 'x_start' 'x_end
     'set y 'y_start' 'y_end
@@ -111,12 +122,23 @@ if (vdim > 2)
       t = t_start
       while (t <= t_end)
         'set t 't
-        'd ' varname
-        if (testing); say result; endif
-        'set fwex'
-        t = t + 1
+        if (z_step > 1)
+          z = z_start
+          while (z <= z_end)
+            'set z 'z
+            'd ' varname
+            if (testing); say result; endif
+            'set fwex'
+            z = z + z_step
+          endwhile
+        else
+          'd ' varname
+          if (testing); say result; endif
+          'set fwex'
+        endif
+        t = t + t_step
       endwhile
-      e = e + 1
+      e = e + e_step
     endwhile
   else 
     'set x 'x_start' 'x_end
@@ -133,11 +155,11 @@ if (vdim > 2)
           'd ' varname
           if (testing); say result; endif
           'set fwex'
-          z = z + 1
+          z = z + z_step
         endwhile
-        t = t + 1
+        t = t + t_step
       endwhile
-      e = e + 1
+      e = e + e_step
     endwhile
   endif
 else
@@ -167,7 +189,7 @@ else
   endif
 endif
 
-'quit'
+return
 * end of script
 
 
@@ -18,7 +18,7 @@ udf_in = subwrd(args, 3)
 
 if (rc!=0)
   say "error: dummy CTL feature not supported by GrADS executable"
-  'quit'
+  return
 endif
 
 rc = write(ctl_out, result)
@@ -28,5 +28,5 @@ rc = write(ctl_out, result)
 * ??? something using fwrite -be
 
 
-'quit'
+return
 
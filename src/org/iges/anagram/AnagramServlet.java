@@ -47,9 +47,12 @@ public class AnagramServlet
     /** Called by init(Server, Module). Sets up filter chain. */
     protected void createFilters() {
 	filters = new ArrayList();
-	filters.add(new AnalysisFilter());
+	// abusive clients and excess load are turned away before they
+	// can take up worker threads or places in the worker queue
 	filters.add(new AbuseFilter());
 	filters.add(new OverloadFilter());
+	filters.add(new WorkerFilter());
+	filters.add(new AnalysisFilter());
 	filters.add(new DispatchFilter());
 	Iterator it = filters.iterator();
 	Filter next = (Filter)it.next();
@@ -131,13 +134,19 @@ public class AnagramServlet
     /** Handles all incoming requests by doing the following:
      *  <list>
      *  <li>A non-exclusive lock on the server is obtained.</li>
-     *  <li>A ClientRequest object is obtained from the Mapper module</li>
+     *  <li>A ClientRequest object is obtained from the Mapper module, 
+     *  and tagged with the current configuration epoch.</li>
+     *  <li>The server lock is released. The request keeps its lock on 
+     *  the handle it was mapped to, so a reconfiguration can proceed
+     *  without waiting for the request to finish.</li>
      *  <li>The request is logged and a timer is started.</li>
      *  <li>The request is passed to the head of the chain of Filters</li>
      *  <li>If an error occurs, the request is passed to the appropriate
      *   error handler.</li>
      *  <li>The total elapsed time is logged, the output stream is closed,
-     *  and the server lock is released.</li>
+     *  and the handle lock is released. If this was the last request 
+     *  of an old epoch, resources retired by the reconfiguration are 
+     *  released.</li>
      *  </list> 
      */
     public void doGet(HttpServletRequest request,
@@ -148,13 +157,19 @@ public class AnagramServlet
 	if (debug()) log.debug(this, "getting lock for thread: " + 
 			       Thread.currentThread().getName());
 
-	server.getSynch().lock();
-
 	long startTime = System.currentTimeMillis();
 	boolean completed = false;
 	
-	ClientRequest clientRequest = 
-	    server.getMapper().map(request, response);
+	ClientRequest clientRequest;
+	server.getSynch().lock();
+	try {
+	    clientRequest = server.getMapper().map(request, response);
+	    server.startRequest(clientRequest);
+	} finally {
+	    if (debug()) log.debug(this, "releasing lock for thread: " + 
+				   Thread.currentThread().getName());
+	    server.getSynch().release();
+	}
 
 	log.info(this, clientRequest + "STARTED");
 
@@ -166,6 +181,9 @@ public class AnagramServlet
 	if (debug()) log.debug(this, clientRequest + 
 			       "handle is " + 
 			       clientRequest.getDataPath());
+	if (debug()) log.debug(this, clientRequest + 
+			       "epoch is " + 
+			       clientRequest.getEpoch());
 
 	// Handle request
 	try {
@@ -199,6 +217,11 @@ public class AnagramServlet
 	log.info(this, clientRequest + "FINISHED (" + 
 		 completedMsg + " in " +
 		 (endTime - startTime) + "ms)");
+	if (verbose() && clientRequest.getEpoch() != server.getEpoch()) {
+	    log.verbose(this, clientRequest + "finished under epoch " + 
+			clientRequest.getEpoch() + "; current epoch is " +
+			server.getEpoch());
+	}
 
 	// Release resources
 	try {
@@ -212,10 +235,7 @@ public class AnagramServlet
 	    clientRequest.getHandle().getSynch().release();
 	}
 
-	if (debug()) log.debug(this, "releasing lock for thread: " + 
-			       Thread.currentThread().getName());
-
-	server.getSynch().release();
+	server.finishRequest(clientRequest);
 
 	if (debug()) log.debug(this, 
 			       "returning control to Tomcat on thread: " + 
@@ -6,19 +6,25 @@ package org.iges.anagram;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.iges.util.*;
 
-/** Manages the list of available data objects. */
+/** Manages the list of available data objects. <p>
+ *
+ *  The permanent entries are held in an immutable snapshot (the
+ *  directory tree plus an index by name). Reconfiguration builds a new
+ *  snapshot to the side and swaps it in, so lookups never wait for
+ *  it. Temporary entries are kept in a concurrent map. The catalog
+ *  lock is only taken by threads that modify the catalog.
+ */
 public class Catalog
     extends AbstractModule {
 
     public Catalog() {
-	try {
-	    root = new DirHandle("/");
-	    tempEntries = new DirHandle("/");
-	} catch (AnagramException ae) {}
-	synch = new ExclusiveLock();
+	snapshot = new Snapshot();
+	tempEntries = new ConcurrentHashMap();
+	synch = new ExclusiveLock("catalog");
     }
 	
 
@@ -69,11 +75,45 @@ public class Catalog
 	}
 	if (verbose()) log.verbose(this, "importing data");
 	DataHandle[] handles = server.getTool().doImport(dataTag);
-	List handleList = Arrays.asList(handles);
-	if (verbose()) log.verbose(this, "clearing deleted entries");
-	unloadEntries(handleList);
-	if (verbose()) log.verbose(this, "adding new entries");
-	loadEntries(handleList);
+
+	// The new entries are built into a separate snapshot, which is
+	// then published all at once, so requests never see a partly
+	// loaded catalog, and are never blocked by the reconfiguration.
+	Snapshot newSnapshot = new Snapshot();
+	for (int i = 0; i < handles.length; i++) {
+	    if (newSnapshot.lookup(handles[i].getCompleteName()) == null) {
+		addHandle(newSnapshot, handles[i]);
+	    }
+	}
+
+	synch.lockExclusive();
+	try {
+	    Snapshot oldSnapshot = snapshot;
+	    snapshot = newSnapshot;
+
+	    Iterator it = oldSnapshot.index.values().iterator();
+	    while (it.hasNext()) {
+		Handle current = (Handle)it.next();
+		if (!(current instanceof DirHandle) &&
+		    newSnapshot.lookup(current.getCompleteName()) != current) {
+		    if (verbose()) log.verbose(this, "unloaded dataset " + 
+					       current.getCompleteName());
+		}
+	    }
+	    for (int i = 0; i < handles.length; i++) {
+		if (oldSnapshot.lookup(handles[i].getCompleteName()) != 
+		    handles[i] &&
+		    newSnapshot.lookup(handles[i].getCompleteName()) == 
+		    handles[i]) {
+		    if (verbose()) log.verbose(this, "loaded dataset " + 
+					       handles[i].getCompleteName());
+		    checkDependencies(handles[i]);
+		}
+	    }
+	} finally {
+	    synch.release();
+	}
+	deletePending();
 	
 	saveCatalogToStore();
 	saveTempEntriesToStore();
@@ -83,8 +123,12 @@ public class Catalog
     /** Adds a temporary dataset to the catalog. */
     public void addTemp(TempDataHandle tempData) {
 	synch.lockExclusive();
-	addTemp(tempData, true);
-	synch.release();
+	try {
+	    addTemp(tempData, true);
+	} finally {
+	    synch.release();
+	}
+	deletePending();
     }
 
     protected void addTemp(TempDataHandle tempData, 
@@ -96,7 +140,7 @@ public class Catalog
 	for (int i = 0; i < handles.length; i++) {
 	    if (debug()) log.debug(this,  "adding temp data as " + 
 				   handles[i].getCompleteName());
-	    tempEntries.add(handles[i]);
+	    tempEntries.put(handles[i].getCompleteName(), handles[i]);
 	}
 
 	tempStorage += tempData.getStorageSize();
@@ -104,7 +148,7 @@ public class Catalog
 			       tempDeleteQueue.size());
 
 	if (debug()) log.debug(this, "temp entries: " + 
-			       tempEntries.getEntries(true).keySet());
+			       tempEntries.keySet());
 	    
 	if (outdated(tempData)) {
 	    removeTemp("clearing outdated cache entry", tempData);
@@ -134,22 +178,42 @@ public class Catalog
 	return false;
     }
 
+    /** Removes temp entries that were created from an older version
+     *  of the dataset given. The caller must call deletePending() once
+     *  it no longer holds the catalog lock. */
     protected void checkDependencies(DataHandle data) {
 	if (debug()) debug("checking temp entries for dependencies on " +
 			   data.getCompleteName());
-	Iterator it = tempDeleteQueue.iterator();
-	while (it.hasNext()) {
-	    TempDataHandle tempHandle = (TempDataHandle)it.next();
-	    if(tempHandle.getCreateTime() < data.getCreateTime() &&
-	       tempHandle.getDependencies().contains(data.getCompleteName())) {
-		it.remove();
-		removeTemp("dependency " + data.getCompleteName() + 
-			   " has changed", tempHandle);
+	boolean wasLocked = synch.isLockedExclusive();
+	if (!wasLocked) {
+	    synch.lockExclusive();
+	}
+	try {
+	    Iterator it = tempDeleteQueue.iterator();
+	    while (it.hasNext()) {
+		TempDataHandle tempHandle = (TempDataHandle)it.next();
+		if(tempHandle.getCreateTime() < data.getCreateTime() &&
+		   tempHandle.getDependencies().contains
+		   (data.getCompleteName())) {
+		    it.remove();
+		    removeTemp("dependency " + data.getCompleteName() + 
+			       " has changed", tempHandle);
+		}
+	    }
+	} finally {
+	    if (!wasLocked) {
+		synch.release();
 	    }
 	}
     }
 
 
+    /** Returns the lock that serializes changes to the catalog. 
+     *  Exposed so that its usage statistics can be reported. */
+    public ExclusiveLock getSynch() {
+	return synch;
+    }
+
     /** Retrieves the handle, if any, that maches the given pathname.
      *  If a handle is found, it will be non-exclusively locked for the
      *  calling thread. This lock <i>must</i> be released
@@ -157,12 +221,16 @@ public class Catalog
      *  may become deadlocked.
      */ 
     public Handle getLocked(String path) {
-	synch.lock();
 	Handle handle = get(path);
 	if (handle != null) {
 	    handle.getSynch().lock();
+	    // a temp entry may have been removed, and its storage deleted,
+	    // before the lock was granted
+	    if (lookup(path) != handle) {
+		handle.getSynch().release();
+		handle = null;
+	    }
 	}
-	synch.release();
 	return handle;
     }
 
@@ -170,9 +238,7 @@ public class Catalog
      *  given pathname.
      */
     public boolean contains(String path) {
-	synch.lock();
 	Handle handle = get(path);
-	synch.release();
 	if (handle != null) {
 	    return true;
 	} else {
@@ -181,168 +247,74 @@ public class Catalog
 	    //	return handle != null;
     }
 
+    /** Looks up a handle, and gives the tool a chance to update it if
+     *  it is a permanent dataset. */
     protected Handle get(String path) {
+	Handle handle = lookup(path);
+	if (handle instanceof DataHandle && !path.startsWith("/_")) {
+	    try {
+		if (server.getTool().doUpdate((DataHandle)handle)) {
+		    checkDependencies((DataHandle)handle);
+		    deletePending();
+		}
+	    } catch (ModuleException me) {
+		error("update of dataset  " + 
+		      handle.getCompleteName() + " failed; " + 
+		      me.getMessage());
+	    }
+	} 
+	return handle;
+    }
+
+    /** Looks up a handle without updating it. Used by get(), and during 
+     *  reconfiguration, where an update would have to wait for
+     *  requests that are using the dataset.
+     */
+    protected Handle lookup(String path) {
 	Handle handle = null;
 	if (path.startsWith("/_")) {
 	    if (debug()) debug("looking in temp entries for " + path);
-	    handle = tempEntries.get(path);
+	    handle = (Handle)tempEntries.get(path);
 	} else {
 	    if (debug()) debug("looking in permanent catalog for " + path);
-	    if (path.endsWith("/")) {
-		path = path.substring(0, path.length() - 1);
-	    }
-	    if (path.equals("")) {
-		handle = root;
-	    } else {
-		DirHandle dir = getDir(path, root);
-		handle = dir.get(path);
-		if (handle instanceof DataHandle) {
-		    try {
-			if (server.getTool().doUpdate((DataHandle)handle)) {
-			    checkDependencies((DataHandle)handle);
-			}
-		    } catch (ModuleException me) {
-			error("update of dataset  " + 
-			      handle.getCompleteName() + " failed; " + 
-			      me.getMessage());
-		    }
-		} 
-	    }
+	    handle = snapshot.lookup(path);
 	} 
 	return handle;
     }
 
     /** Deletes all temporary entries in the catalog */
     public void clearTemp() {
-	while (tempDeleteQueue.size() > 0) {
-	    removeTemp("clearing cache", null);
+	synch.lockExclusive();
+	try {
+	    while (tempDeleteQueue.size() > 0) {
+		removeTemp("clearing cache", null);
+	    }
+	    saveTempEntriesToStore();
+	} finally {
+	    synch.release();
 	}
-	synch.lock();
-	saveTempEntriesToStore();
-	synch.release();
+	deletePending();
     }
 
     /** Returns the parent of the handle given. The resulting handle is not
-     *  locked, since directory handles are only modified during
-     *  reconfiguration. 
+     *  locked, since directory handles are never modified once they
+     *  are published.
      */ 
     public DirHandle getParent(Handle handle) {
-	return getDir(handle.getCompleteName(), root);
-    }
-
-    /** Used by add, remove, get, and getParent to look up datasets */
-    protected DirHandle getDir(String path, DirHandle dir) {
-	//	if (debug()) debug("matched " + path + " to " + dir);
-	if (path.endsWith("/")) {
-	    path = path.substring(0, path.length() - 1);
-	}
-	String subPath = getChildPath(path, dir);
-
-	if (subPath.equals("") || path.startsWith("_")) {
-	    return dir;
-	}
-
-	Iterator it = dir.getEntries(false).values().iterator();
-	while (it.hasNext()) {
-	    Handle current = (Handle)it.next();
-	    if (!(current instanceof DirHandle)) {
-		continue;
-	    }
-	    DirHandle subdir = (DirHandle)current;
-	    if (path.startsWith(subdir.getCompleteName() + "/")) {
-		return getDir(path, subdir);
-	    }
-	}
-
-	return dir;
-	
+	return snapshot.getDir(handle.getCompleteName());
     }
 
-    /** Used by add, remove and getDir 
-     *  Takes "basepath[/name1[/name2/../nameN]]"
-     *  Returns name1 if followed by name2, or "" otherwise
-     */
-    protected String getChildPath(String completePath, DirHandle dir) {
-	int subPathStart = dir.getCompleteName().length();
-	int subPathEnd = completePath.indexOf('/', subPathStart + 1);
-	if (subPathEnd < 0) { 
-	    return "";
-	} else {
-	    return completePath.substring(subPathStart, subPathEnd);
-	}
-    }
-	
-    /** Adds a handle to the correct dir, creating it if necessary */
-    protected void addHandle(DataHandle handle) {
+    /** Adds a handle to the correct dir of a snapshot that is being 
+     *  built, creating the dir if necessary */
+    protected void addHandle(Snapshot target, DataHandle handle) {
 	try {
 	    if (debug()) debug("adding handle " + handle);
-	    DirHandle parent = getDir(handle.getCompleteName(), root);
-	    if (debug()) debug("handle matches dir " + parent);
-	    String childPath = getChildPath(handle.getCompleteName(), parent);
-	    if (debug()) debug("subdir is " + childPath);
-  	    while (!childPath.equals("") && 
-		   !handle.getCompleteName().startsWith("_")) {
-		DirHandle newDir = 
-		    new DirHandle(parent.getCompleteName() + childPath);
-		synchronized(parent) {
-		    parent.add(newDir);
-		}
-		parent = newDir;
-		if (debug()) debug("created dir " + newDir);
-		childPath = getChildPath(handle.getCompleteName(), parent);
-		if (debug()) debug("subdir is " + childPath);
-	    } 	
-	    synchronized(parent) {
-		if (debug()) debug("adding handle to " + parent);
-		parent.add(handle);
-	    }
-	    checkDependencies(handle);
+	    target.add(handle);
 	} catch (AnagramException ae) {
 	    error("failed adding " + handle + "; " + ae.getMessage());
 	}
     }	
 
-    /** Removes a handle, removing the parent dir if
-     *  appropriate. */
-    protected void removeHandle(Handle handle) {
-	DirHandle parent = getDir(handle.getCompleteName(), root);
-	synchronized(parent) {
-	    parent.remove(handle.getCompleteName());
-	}
-	if (parent != root && parent.getEntries(false).size() == 0) {
-	    if (debug()) debug("destroying dir " + parent);
-	    removeHandle(parent);
-	}
-    }	    
-
-    protected void unloadEntries(List newEntries) {
-	List killList = new ArrayList();
-	Iterator it = root.getEntries(true).values().iterator();
-	while (it.hasNext()) {
-	    Handle current = (Handle)it.next();
-	    if (current instanceof DirHandle) {
-		continue;
-	    }
-	    if (!(newEntries.contains(current))) {
-		removeHandle(current);
-		if (verbose()) log.verbose(this, "unloaded dataset " + 
-					   current.getCompleteName());
-	    }
-	}
-    }
-
-    protected void loadEntries(List newEntries) {
-	Iterator it = newEntries.iterator();
-	while (it.hasNext()) {
-	    DataHandle current = (DataHandle)it.next();
-	    if (this.get(current.getCompleteName()) == null) {
-		addHandle(current);
-		if (verbose()) log.verbose(this, "loaded dataset " + 
-					   current.getCompleteName());
-	    }
-	}
-    }
-
     protected void loadTempEntriesFromStore() {
 
 	tempDeleteQueue = new LinkedList();
@@ -399,11 +371,13 @@ public class Catalog
 			(catalogFile));
 	    Collection oldEntries = (Collection)entryStream.readObject();
 	    entryStream.close();	    
+	    Snapshot restored = new Snapshot();
 	    Iterator it = oldEntries.iterator();
 	    while (it.hasNext()) {
 		DataHandle data = (DataHandle)it.next();
-		addHandle(data);
+		addHandle(restored, data);
 	    }
+	    snapshot = restored;
 	    log.info(this, "reloaded " + oldEntries.size() + 
 		     " catalog entries from " + 
 		     catalogFile.getAbsolutePath());
@@ -445,7 +419,8 @@ public class Catalog
 	try {
 	    synch.lock(); // synchronization added since this is public
 	    File catalogFile = server.getStore().get(this, CATALOG_FILE);
-	    Collection entries = new HashSet(root.getEntries(true).values());
+	    Collection entries = 
+		new HashSet(snapshot.root.getEntries(true).values());
 	    if (debug()) log.debug(this, "writing " + entries.size() +
 				   " catalog entries to " +
 				   catalogFile.getAbsolutePath());
@@ -497,21 +472,128 @@ public class Catalog
 	}
     }
 
+    /** Takes a temp entry out of the catalog. The caller must hold the
+     *  catalog lock. The entry's storage is deleted by deletePending(),
+     *  once no requests are using it.
+     *  @param tempHandle The entry to remove, or null for the oldest
+     */
     protected void removeTemp(String reason, TempDataHandle tempHandle) {
-	synch.lockExclusive();
 	if (tempHandle == null) {
 	    tempHandle = (TempDataHandle)tempDeleteQueue.removeFirst();
 	}
 	DataHandle[] handles = tempHandle.getDataHandles();
 	log.info(this, reason + "; deleting temp data " + handles[0]);
 	for (int i = 0; i < handles.length; i++) {
-	    handles[i].getSynch().lockExclusive();
 	    tempEntries.remove(handles[i].getCompleteName());
-	    handles[i].getSynch().release();
 	}
 	tempStorage -= tempHandle.getStorageSize();
-	tempHandle.deleteStorage();
-	synch.release();
+	synchronized (pendingDeletes) {
+	    pendingDeletes.add(tempHandle);
+	}
+    }
+
+    /** Deletes the storage for removed temp entries, waiting for any
+     *  requests that are still using them. Must not be called while
+     *  holding the catalog lock, so that lookups and other changes can
+     *  proceed in the meantime. If the lock is held, the entries are
+     *  left for the thread holding it to delete. */
+    protected void deletePending() {
+	if (synch.isLockedExclusive()) {
+	    return;
+	}
+	while (true) {
+	    TempDataHandle tempHandle;
+	    synchronized (pendingDeletes) {
+		if (pendingDeletes.isEmpty()) {
+		    return;
+		}
+		tempHandle = (TempDataHandle)pendingDeletes.removeFirst();
+	    }
+	    DataHandle[] handles = tempHandle.getDataHandles();
+	    for (int i = 0; i < handles.length; i++) {
+		handles[i].getSynch().lockExclusive();
+		handles[i].getSynch().release();
+	    }
+	    tempHandle.deleteStorage();
+	}
+    }
+
+    /** An immutable view of the permanent entries in the catalog. 
+     *  A snapshot is only modified while it is being built, before it
+     *  is published by assigning it to the snapshot field. */
+    protected static class Snapshot {
+
+	protected Snapshot() {
+	    try {
+		root = new DirHandle("/");
+	    } catch (AnagramException ae) {}
+	    index = new HashMap();
+	    index.put(root.getCompleteName(), root);
+	}
+
+	protected Handle lookup(String path) {
+	    if (path.endsWith("/")) {
+		path = path.substring(0, path.length() - 1);
+	    }
+	    if (path.equals("")) {
+		return root;
+	    } 
+	    return (Handle)index.get(path);
+	}
+
+	/** Returns the deepest directory that contains the path
+	 *  given, by trying each of its ancestors in the index. */
+	protected DirHandle getDir(String path) {
+	    if (path.endsWith("/")) {
+		path = path.substring(0, path.length() - 1);
+	    }
+	    int slash = path.lastIndexOf('/');
+	    while (slash > 0) {
+		path = path.substring(0, slash);
+		Object dir = index.get(path);
+		if (dir instanceof DirHandle) {
+		    return (DirHandle)dir;
+		}
+		slash = path.lastIndexOf('/');
+	    }
+	    return root;
+	}
+
+	/** Adds a handle to the correct dir, creating it if necessary */
+	protected void add(DataHandle handle) 
+	    throws AnagramException {
+
+	    String name = handle.getCompleteName();
+	    DirHandle parent = getDir(name);
+	    String childPath = getChildPath(name, parent);
+	    while (!childPath.equals("")) {
+		DirHandle newDir = 
+		    new DirHandle(parent.getCompleteName() + childPath);
+		parent.add(newDir);
+		index.put(newDir.getCompleteName(), newDir);
+		parent = newDir;
+		childPath = getChildPath(name, parent);
+	    } 	
+	    parent.add(handle);
+	    index.put(name, handle);
+	}
+
+	/** Takes "basepath[/name1[/name2/../nameN]]"
+	 *  Returns name1 if followed by name2, or "" otherwise
+	 */
+	protected String getChildPath(String completePath, DirHandle dir) {
+	    int subPathStart = dir.getCompleteName().length();
+	    int subPathEnd = completePath.indexOf('/', subPathStart + 1);
+	    if (subPathEnd < 0) { 
+		return "";
+	    } else {
+		return completePath.substring(subPathStart, subPathEnd);
+	    }
+	}
+
+	protected DirHandle root;
+	/** All entries and directories, by complete name */
+	protected Map index;
     }
 	
 
@@ -520,10 +602,11 @@ public class Catalog
 
     protected ExclusiveLock synch;
 
-    protected DirHandle root;
-    protected DirHandle tempEntries;
+    protected volatile Snapshot snapshot;
+    protected Map tempEntries;
 
     protected LinkedList tempDeleteQueue;
+    protected LinkedList pendingDeletes = new LinkedList();
 
     protected long tempStorage;
 
@@ -76,6 +76,19 @@ public class ClientRequest {
 	this.handle = handle;
     }
 
+    /** Returns the configuration epoch that this request was mapped 
+     *  under. 
+     *  @see Server#getEpoch()
+     */
+    public long getEpoch() {
+	return epoch;
+    }
+
+    /** Sets the configuration epoch for this request */
+    public void setEpoch(long epoch) {
+	this.epoch = epoch;
+    }
+
     /** Returns the name of the service associated with this request */
     public String getServiceName() {
 	return serviceName;
@@ -129,5 +142,6 @@ public class ClientRequest {
     protected String ce;
     protected String summary;
     protected Privilege privileges;
+    protected long epoch;
 
 }
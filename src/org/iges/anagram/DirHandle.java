@@ -53,7 +53,11 @@ public class DirHandle
     public Map getEntries(boolean recurse) {
 	if (recurse) {
 	    SortedMap recursedEntries = new TreeMap();
-	    Iterator it = entries.values().iterator();
+	    List current;
+	    synchronized (this) {
+		current = new ArrayList(entries.values());
+	    }
+	    Iterator it = current.iterator();
 	    while (it.hasNext()) {
 		Handle next = (Handle)it.next();
 		if (next instanceof DirHandle) {
@@ -17,7 +17,7 @@ public abstract class Handle
 
 	validateName(completeName);
 	this.completeName = completeName;
-	this.synch = new ExclusiveLock();
+	this.synch = new ExclusiveLock(completeName);
     }
 
     /** Returns the portion of the entry's complete name that follows the 
@@ -48,9 +48,9 @@ public abstract class Handle
      *  Locks that have been obtained must always be released (even if the synchronized
      *  operation throws an exception), or other requests may become deadlocked.
      */
-    public ExclusiveLock getSynch() {
+    public synchronized ExclusiveLock getSynch() {
 	if (synch == null) {
-	    synch = new ExclusiveLock();
+	    synch = new ExclusiveLock(completeName);
 	}
 	return synch;
     }
@@ -58,15 +58,86 @@ public class Server
 
     /** Used to synchronize operations on the entire server. 
      *  Each client request holds a non-exclusive lock on the server while it
-     *  is being processed.
+     *  is being mapped to a service and a catalog entry.
      *  The configuration process obtains an exclusive lock on the 
-     *  server, thus guaranteeing that no requests will be in-process
-     *  while the server is re-configuring itself.
+     *  server, thus guaranteeing that no requests will be mapped
+     *  while the server is re-configuring itself. Requests that have
+     *  already been mapped continue to run against the handle they 
+     *  obtained, and are not waited for; resources they may be using
+     *  are released later (see retire()).
      */
     public ExclusiveLock getSynch() {
 	return synch;
     }
 
+    /** Returns the current configuration epoch. The epoch starts at 1
+     *  and is incremented each time a new configuration is published.
+     *  Each request records the epoch it was mapped under.
+     */
+    public long getEpoch() {
+	return epoch;
+    }
+
+    /** Records that a request is starting, and tags it with the
+     *  current configuration epoch. This must be called while holding
+     *  a non-exclusive lock on the server, and must be matched by a
+     *  call to finishRequest().
+     */
+    public void startRequest(ClientRequest request) {
+	synchronized (activeRequests) {
+	    request.setEpoch(epoch);
+	    Long key = Long.valueOf(epoch);
+	    int[] count = (int[])activeRequests.get(key);
+	    if (count == null) {
+		count = new int[1];
+		activeRequests.put(key, count);
+	    }
+	    count[0]++;
+	}
+    }
+
+    /** Records that a request has finished. If it was the last
+     *  request running under an old epoch, any resources retired
+     *  since then are released.
+     *  @see #retire(Runnable)
+     */
+    public void finishRequest(ClientRequest request) {
+	List ready;
+	synchronized (activeRequests) {
+	    Long key = Long.valueOf(request.getEpoch());
+	    int[] count = (int[])activeRequests.get(key);
+	    if (count != null && --count[0] == 0) {
+		activeRequests.remove(key);
+	    }
+	    ready = takeRetired();
+	}
+	runRetired(ready);
+    }
+
+    /** Schedules the release of a resource that has been replaced
+     *  during configuration, such as a pool of threads or processes.
+     *  Modules may not reconfigure such a resource in place, since
+     *  requests mapped under earlier epochs may still be using
+     *  it. Instead, configure() creates a replacement, and passes an
+     *  action that shuts down the old one to this method. The action
+     *  is run once every request mapped under the current or an
+     *  earlier epoch has finished.
+     */
+    public void retire(Runnable action) {
+	List ready;
+	synchronized (activeRequests) {
+	    Long key = Long.valueOf(epoch);
+	    List actions = (List)retired.get(key);
+	    if (actions == null) {
+		actions = new ArrayList();
+		retired.put(key, actions);
+	    }
+	    actions.add(action);
+	    ready = takeRetired();
+	}
+	runRetired(ready);
+    }
+
     /** The module ID of the server is determined by the Anagram property
      *  "anagram.impl". This should be a short alpha-numeric abbrevation
      *  of the implementation name. For instance My Anagram Implementation
@@ -160,7 +231,7 @@ public class Server
 	this.implName = "anagram";
 	this.outputLevel = Log.ERROR;
 	this.servlet = servlet;
-	this.synch = new ExclusiveLock();
+	this.synch = new ExclusiveLock("server");
 	
 	String outputSetting = getProperty(servletConfig,
 					   "anagram.output",
@@ -294,6 +365,9 @@ public class Server
      *  parses it and reconfigures the entire server to the new settings.
      *  This operation should only be performed
      *  by a thread that has an exclusive lock on the Server module.
+     *  Requests that are still running under the previous epoch are
+     *  not affected, since modules retire the resources they replace
+     *  rather than releasing them immediately.
      */
     public void reconfigure() 
 	throws ModuleException {
@@ -345,8 +419,10 @@ public class Server
 	configModule(privilegeMgr, setting);
 	configModule(servlet, setting);
 	configModule(catalog, setting);
+
+	epoch++;
 	
-	log(Log.VERBOSE, "finished configuration");
+	log(Log.VERBOSE, "finished configuration; epoch is " + epoch);
     }
     
     /** Returns the last time that the server's configuration changed,
@@ -411,6 +487,32 @@ public class Server
     
     // implementation
     
+    /** Removes the retired actions that no running request can
+     *  depend on. Must be called while synchronized on activeRequests.
+     */
+    protected List takeRetired() {
+	SortedMap ready = (activeRequests.isEmpty()) ? 
+	    retired : retired.headMap(activeRequests.firstKey());
+	List actions = new ArrayList();
+	Iterator it = ready.values().iterator();
+	while (it.hasNext()) {
+	    actions.addAll((List)it.next());
+	}
+	ready.clear();
+	return actions;
+    }
+
+    protected void runRetired(List actions) {
+	Iterator it = actions.iterator();
+	while (it.hasNext()) {
+	    try {
+		((Runnable)it.next()).run();
+	    } catch (RuntimeException re) {
+		log(Log.ERROR, "couldn't release retired resource: " + re);
+	    }
+	}
+    }
+
     protected String getProperty(ServletConfig config, 
 				 String name, 
 				 String defaultValue) {
@@ -572,6 +674,12 @@ public class Server
     
     protected File configFile;
     protected long lastConfigTime;
+    protected volatile long epoch;
+    /** Number of running requests (int[1]) for each epoch (Long) */
+    protected SortedMap activeRequests = new TreeMap();
+    /** Actions (List of Runnable) waiting for the requests of an
+     *  epoch (Long) and earlier to finish */
+    protected SortedMap retired = new TreeMap();
     protected long startTime;
 
     protected Tool tool;
@@ -221,6 +221,32 @@ public abstract class Tool
 					 OutputStream out)
 	throws ModuleException;
 
+    /** Calculates the exact length of the response writeBinaryData()
+     *  will produce for a subset, without producing it. This allows
+     *  the response to be sent in parts, as requested by clients
+     *  resuming an interrupted download.<p>
+     *
+     * A tool that returns a length must handle an
+     * org.iges.util.RangeOutputStream passed to writeBinaryData(), by
+     * writing the complete response to it, or by calling skip() in
+     * place of parts of the response that fall outside the range.<p>
+     *
+     * The same locking guarantees apply as for writeBinaryData().
+     * The default implementation returns -1. <p>
+     *
+     * @param data The data object to be accessed
+     *  @param ce The DODS constraint expression specifying the subset
+     * @return The length in bytes, or -1 if it can't be known in
+     * advance
+     * @throws ModuleException if the request fails for any reason
+     */
+    public long getBinaryDataLength(DataHandle data,
+				    String ce,
+				    Privilege privilege)
+	throws ModuleException {
+	return -1;
+    }
+
     /** Writes a data subset to a stream as a text table.<p>
      *
      * It is guaranteed that the calling thread will already have a
@@ -242,6 +268,12 @@ public abstract class Tool
 					OutputStream out)
 	throws ModuleException;
 
-
+    /** Returns a summary of the tool's activity, such as the state of
+     *  any queues it maintains, to be displayed by the admin service.
+     *  The default implementation returns an empty string.
+     */
+    public String getStatistics() {
+	return "";
+    }
 
 }
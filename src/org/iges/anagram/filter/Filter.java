@@ -5,6 +5,7 @@
 package org.iges.anagram.filter;
 
 import org.iges.anagram.*;
+import org.iges.anagram.service.*;
 
 /** A module that performs a step in the handling of a client request. */
 public abstract class Filter 
@@ -67,6 +68,22 @@ public abstract class Filter
     protected abstract void doFilter(ClientRequest request)
 	throws ModuleException;
 
+    /** Returns true for requests that may take a long time to complete:
+     *  data subsets, and anything that requires an analysis expression
+     *  to be evaluated. */
+    protected boolean isLongRunning(ClientRequest clientRequest) {
+	Service service = clientRequest.getService();
+	if (service == null || !service.isEnabled()) {
+	    return false;
+	}
+	if (service.isLongRunning()) {
+	    return true;
+	}
+	return clientRequest.getHandle() == null &&
+	    clientRequest.getDataPath().startsWith
+	    (AnalysisFilter.ANALYSIS_PREFIX);
+    }
+
     protected Filter next;
     protected String filterName;
     protected String moduleID;
@@ -8,8 +8,9 @@ import java.util.*;
 
 import org.iges.anagram.*;
 
-/** Tracks the number of simultaneous requests, and blocks those
- *  that exceed the server's limit. 
+/** Tracks the number of simultaneous long-running requests, and blocks 
+ *  those that exceed the server's limit. Metadata requests are cheap,
+ *  so they are neither counted nor blocked.
  */
 public class OverloadFilter 
     extends Filter {
@@ -28,6 +29,11 @@ public class OverloadFilter
     public void doFilter(ClientRequest clientRequest) 
 	throws ModuleException {
 
+	if (!isLongRunning(clientRequest)) {
+	    next.handle(clientRequest);
+	    return;
+	}
+
 	synchronized(this) {
 	    if (limit > 0 && currentLoad >= limit) {
 		fail("server is experiencing heavy load. " + 
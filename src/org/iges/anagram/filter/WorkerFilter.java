@@ -0,0 +1,181 @@
+/* Copyright (C) 2000-2021 by George Mason University.
+*  Authored by Joe Wielgosz and maintained by Jennifer Adams.
+*  See file COPYRIGHT for more information.
+*/
+package org.iges.anagram.filter;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.iges.anagram.*;
+
+/** Hands long-running requests to a bounded pool of worker threads,
+ *  so that they cannot tie up all of the servlet container's threads.
+ *  Requests for data subsets and analysis results are queued for the
+ *  pool, while all other requests are passed on immediately. If the
+ *  queue is full, the request is rejected.<p>
+ *
+ *  The container thread waits for its request to complete, since the
+ *  servlet API does not allow a response to outlive the call to the
+ *  servlet. The number of threads in the pool, rather than the number
+ *  of container threads, therefore limits how many expensive requests
+ *  are processed at once.<p>
+ *
+ *  Each queued request also holds a container thread while it
+ *  waits, so the queue must be kept well below the maxProcessors
+ *  setting of the servlet container's connector (75 by default in
+ *  Tomcat 4); otherwise the container runs out of threads before any
+ *  request is rejected. The queue holds twice as many requests as
+ *  there are threads by default.<p>
+ *
+ *  The pool is disabled (threads = 0) by default.
+ */
+public class WorkerFilter
+    extends Filter {
+
+    public String getFilterName() {
+	return "worker";
+    }
+
+    public void configure(Setting setting)
+	throws ConfigException {
+
+	super.configure(setting);
+	int newThreads = (int)setting.getNumAttribute("threads", 0);
+	// queued requests hold container threads too, so the queue has
+	// to be well below the connector's maxProcessors
+	int newQueue = (int)setting.getNumAttribute("queue", newThreads * 2);
+	if (newQueue < 1) {
+	    newQueue = 1;
+	}
+
+	synchronized (this) {
+	    if (newThreads == threads && newQueue == queueSize) {
+		return;
+	    }
+	    if (pool != null) {
+		// requests mapped before now may still submit to the old
+		// pool, so it is only shut down once they have finished
+		final ExecutorService oldPool = pool;
+		server.retire(new Runnable() {
+			public void run() {
+			    oldPool.shutdown();
+			}
+		    });
+		pool = null;
+	    }
+	    threads = newThreads;
+	    queueSize = newQueue;
+	    if (threads > 0) {
+		pool = new ThreadPoolExecutor
+		    (threads, threads,
+		     60, TimeUnit.SECONDS,
+		     new ArrayBlockingQueue(queueSize),
+		     new WorkerThreadFactory());
+	    }
+	}
+
+	if (threads > 0) {
+	    if (verbose()) verbose("worker pool has " + threads +
+				   " threads and a queue of " + queueSize);
+	} else {
+	    if (verbose()) verbose("worker pool is disabled");
+	}
+    }
+
+    protected void doFilter(final ClientRequest clientRequest)
+	throws ModuleException {
+
+	ExecutorService currentPool;
+	synchronized (this) {
+	    currentPool = pool;
+	}
+
+	if (currentPool == null || !isLongRunning(clientRequest)) {
+	    next.handle(clientRequest);
+	    return;
+	}
+
+	Future result;
+	try {
+	    result = currentPool.submit(new Callable() {
+		    public Object call() throws Exception {
+			runOnWorker(clientRequest);
+			return null;
+		    }
+		});
+	} catch (RejectedExecutionException ree) {
+	    fail("server is experiencing heavy load. " +
+		 "please try again later.");
+	    return;
+	}
+
+	if (debug()) debug(clientRequest + "queued for worker pool");
+
+	boolean interrupted = false;
+	try {
+	    while (true) {
+		try {
+		    result.get();
+		    return;
+		} catch (InterruptedException ie) {
+		    interrupted = true;
+		}
+	    }
+	} catch (ExecutionException ee) {
+	    Throwable cause = ee.getCause();
+	    if (cause instanceof ModuleException) {
+		throw (ModuleException)cause;
+	    } else if (cause instanceof RuntimeException) {
+		throw (RuntimeException)cause;
+	    } else if (cause instanceof Error) {
+		throw (Error)cause;
+	    } else {
+		fail("request failed", cause);
+	    }
+	} finally {
+	    if (interrupted) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+    }
+
+    /** Runs the rest of the filter chain on a worker thread. The
+     *  container thread holds the lock on the request's original handle
+     *  while it waits. A handle obtained on the worker thread (for
+     *  instance an analysis result) is locked by the worker thread, so
+     *  it must also be released here.
+     */
+    protected void runOnWorker(ClientRequest clientRequest)
+	throws ModuleException {
+
+	Handle original = clientRequest.getHandle();
+	if (debug()) debug(clientRequest + "running on worker thread");
+	try {
+	    next.handle(clientRequest);
+	} finally {
+	    Handle current = clientRequest.getHandle();
+	    if (current != null && current != original) {
+		current.getSynch().release();
+		clientRequest.setHandle(original);
+	    }
+	}
+    }
+
+    protected class WorkerThreadFactory
+	implements ThreadFactory {
+
+	public Thread newThread(Runnable r) {
+	    Thread thread = new Thread(r, "worker-" + (++count));
+	    thread.setDaemon(true);
+	    return thread;
+	}
+
+	protected int count;
+    }
+
+    protected ExecutorService pool;
+    protected int threads;
+    protected int queueSize;
+
+}
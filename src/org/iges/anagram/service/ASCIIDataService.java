@@ -33,6 +33,10 @@ public class ASCIIDataService
 	return "ascii";
     }
 
+    public boolean isLongRunning() {
+	return true;
+    }
+
     public void configure(Setting setting) {
     }
 
@@ -52,7 +56,9 @@ public class ASCIIDataService
 	    DataHandle data = getDataFromPath(clientRequest);
 
 	    response.setContentType("text/plain");
-	    response.setDateHeader("Last-Modified", data.getCreateTime());
+	    if (!checkModified(clientRequest, data.getCreateTime(), null)) {
+		return;
+	    }
 
 	    server.getTool().writeASCIIData(data, 
 					    clientRequest.getCE(), 
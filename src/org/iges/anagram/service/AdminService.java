@@ -71,34 +71,27 @@ public class AdminService
 	    throw new ModuleException(this, "no command given");
 	} else if (command[0].equals("reload")) {
 	    if (debug()) debug("attempting to get exclusive lock"); 
+	    // the exclusive lock only waits for requests that are
+	    // currently being mapped, not for running requests
+	    if (!server.getSynch().tryLockExclusive(timeout * 1000)) {
+		throw new ModuleException
+		    (this, "timed out after " + timeout + 
+		     " seconds; server is currently in use");
+	    }
+	    if (debug()) debug("got an exclusive lock"); 
 	    try {
-		synchronized (server.getSynch()) {
-		    // must release regular lock, or exclusive lock will fail
-		    server.getSynch().release();
-		    if (debug()) debug("released non-exclusive lock"); 
-		    if (!server.getSynch().tryLockExclusive(timeout * 1000)) {
-			throw new ModuleException
-			    (this, "timed out after " + timeout + 
-			     " seconds; server is currently in use");
-		    }
-		    if (debug()) debug("got an exclusive lock"); 
-		}
 		info("reconfiguring server");
 		server.reconfigure();
-	    } catch (ModuleException me) {
-		throw me;
 	    } finally {
-		if (debug()) debug("returning to non-exclusive lock"); 
-		synchronized (server.getSynch()) {
-		    server.getSynch().release();
-		if (debug()) debug("switching back to non-exclusive lock"); 
-		    server.getSynch().lock();		
-		if (debug()) debug("switched back to non-exclusive lock"); 
-		}
+		server.getSynch().release();
+		if (debug()) debug("released exclusive lock"); 
 	    }
 	} else if (command[0].equals("clear")) {
 	    info("removing all temporary catalog entries");
 	    server.getCatalog().clearTemp();
+	} else if (command[0].equals("stats")) {
+	    printStats(clientRequest);
+	    return;
 	} else {
 	    throw new ModuleException(this, "unknown command " + command[0]);
 	}
@@ -125,6 +118,40 @@ public class AdminService
 	
     }
 
+    /** Prints usage statistics for the server, catalog and dataset
+     *  locks, followed by the tool's own statistics */
+    protected void printStats(ClientRequest request) {
+	request.getHttpResponse().setHeader("Cache-Control", "no-cache");
+	String baseURL = getBaseURL(request);
+	PrintStream page = startHTML(request);
+	if (page == null) { 
+	    return;
+	}
+	printHeader(page, "admin", "admin", null, baseURL);
+	page.print("Lock statistics:<p>\n<pre>\n");
+	page.print(server.getSynch().getStatistics());
+	page.print("\n");
+	page.print(server.getCatalog().getSynch().getStatistics());
+	page.print("\n");
+
+	Handle root = server.getCatalog().getLocked("/");
+	Iterator it = ((DirHandle)root).getEntries(true).values().iterator();
+	root.getSynch().release();
+	while (it.hasNext()) {
+	    ExclusiveLock synch = ((Handle)it.next()).getSynch();
+	    if (synch.getSharedAcquisitions() > 0 || 
+		synch.getExclusiveAcquisitions() > 0) {
+		page.print(synch.getStatistics());
+		page.print("\n");
+	    }
+	}
+	page.print("</pre>\n");
+	page.print("Tool statistics:<p>\n<pre>\n");
+	page.print(server.getTool().getStatistics());
+	page.print("\n</pre>\n");
+	printFooter(page, null, 0, baseURL);
+	if (debug()) debug("sent admin stats to client"); 
+    }
 
     protected String authCode;
     protected long timeout;
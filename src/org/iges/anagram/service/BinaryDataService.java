@@ -6,14 +6,23 @@ package org.iges.anagram.service;
 
 import java.io.*;
 import java.util.Date;
+import java.util.concurrent.*;
 import java.util.zip.*;
 import javax.servlet.http.*;
 
 import dods.dap.Server.ServerDDS;
 
 import org.iges.anagram.*;
+import org.iges.util.ParallelDeflaterOutputStream;
+import org.iges.util.RangeOutputStream;
 
-/** Provides data subsets in DODS binary format */
+/** Provides data subsets in DODS binary format. If the client accepts
+ *  it, the response is compressed in gzip or deflate format. Large
+ *  responses are compressed in blocks on a pool of threads (see
+ *  org.iges.util.ParallelDeflaterOutputStream). Uncompressed
+ *  responses whose length the tool can calculate in advance support
+ *  single byte ranges, so that interrupted downloads can be resumed.
+ */
 public class BinaryDataService 
     extends Service {
 
@@ -21,7 +30,51 @@ public class BinaryDataService
 	return "binary";
     }
 
+    public boolean isLongRunning() {
+	return true;
+    }
+
     public void configure(Setting setting) {
+	int newLevel = (int)setting.getNumAttribute("compression_level", 
+						   Deflater.DEFAULT_COMPRESSION);
+	if (newLevel < Deflater.DEFAULT_COMPRESSION || 
+	    newLevel > Deflater.BEST_COMPRESSION) {
+	    newLevel = Deflater.DEFAULT_COMPRESSION;
+	}
+	int newThreads = (int)setting.getNumAttribute
+	    ("compression_threads", Runtime.getRuntime().availableProcessors());
+	long newBlockSize = setting.getNumAttribute("compression_block", 128);
+	long newThreshold = 
+	    setting.getNumAttribute("compression_threshold", 1024);
+
+	synchronized (this) {
+	    level = newLevel;
+	    blockSize = (int)Math.max(newBlockSize, 32) * 1024;
+	    threshold = newThreshold * 1024;
+	    if (newThreads != threads) {
+		if (pool != null) {
+		    // responses in progress keep submitting blocks to the
+		    // old pool, so it is only shut down once they finish
+		    final ExecutorService oldPool = pool;
+		    server.retire(new Runnable() {
+			    public void run() {
+				oldPool.shutdown();
+			    }
+			});
+		    pool = null;
+		}
+		threads = newThreads;
+		if (threads > 1) {
+		    pool = Executors.newFixedThreadPool
+			(threads, new CompressorThreadFactory());
+		}
+	    }
+	}
+
+	if (verbose()) verbose("compression level " + level + 
+			       "; " + threads + " threads for blocks of " + 
+			       (blockSize / 1024) + " KB, above " + 
+			       (threshold / 1024) + " KB");
     }
 
     public void handle(ClientRequest clientRequest)
@@ -41,23 +94,24 @@ public class BinaryDataService
 	response.setHeader("XDODS-Server", "dods/3.2");
 	response.setHeader("XDAP", "3.2");
 	response.setHeader("Content-Description", "dods_data");
-	response.setDateHeader("Last-Modified", data.getCreateTime());
+	if (!checkModified(clientRequest, data.getCreateTime(), 
+			   negotiateEncoding(clientRequest))) {
+	    return;
+	}
 	
-	String encoding = request.getHeader("Accept-Encoding");
-	boolean useCompressed =
-  	    (encoding != null) 
-  	    && encoding.equalsIgnoreCase("deflate");
-
 	try {
 	
 	    OutputStream dataOut;
-	    if (useCompressed){
-		if (debug()) log.debug(this, clientRequest + 
-				       "using compression");
-		response.setHeader("Content-Encoding", "deflate");
-		dataOut = new DeflaterOutputStream(response.getOutputStream());
+	    ParallelDeflaterOutputStream compressor = 
+		startCompression(clientRequest, response.getOutputStream());
+	    if (compressor != null) {
+		dataOut = compressor;
 	    } else {
-		dataOut = response.getOutputStream();
+		dataOut = startRange(clientRequest, data, 
+				     response.getOutputStream());
+		if (dataOut == null) {
+		    return;
+		}
 	    }
 	    
 	    server.getTool().writeBinaryData(data, 
@@ -67,12 +121,171 @@ public class BinaryDataService
 	    if (debug()) debug("wrote binary data");
 	    dataOut.flush();
 	    if (debug()) debug("flushed stream");
-	    if (useCompressed) {
-		((DeflaterOutputStream)dataOut).finish();
-		if (debug()) debug("finished off compression");
+	    if (compressor != null) {
+		compressor.finish();
+		if (debug()) debug("finished off compression; " + 
+				   compressor.getParallelBlocks() + 
+				   " blocks compressed in parallel");
 	    }
 	} catch (IOException ioe) {}
     }
-	
+
+    /** Sets up an uncompressed response. If the tool can calculate
+     *  the length of the response in advance, the Content-Length is
+     *  sent, and a byte range may be requested by the client, for
+     *  instance to resume an interrupted download. Only a single
+     *  range is supported; a request for several ranges is answered
+     *  with the complete response.
+     * @return The stream to write the complete response to, which
+     * passes on only the range requested; or null if the range can't
+     * be satisfied and nothing should be written
+     */
+    protected OutputStream startRange(ClientRequest clientRequest,
+				      DataHandle data,
+				      OutputStream out)
+	throws ModuleException {
+
+	HttpServletRequest request = clientRequest.getHttpRequest();
+	HttpServletResponse response = clientRequest.getHttpResponse();
+
+	long length = server.getTool().getBinaryDataLength
+	    (data, clientRequest.getCE(), clientRequest.getPrivilege());
+	if (length < 0) {
+	    return out;
+	}
+
+	// the tag set by checkModified() for an uncompressed response
+	String etag = getETag(clientRequest, data.getCreateTime(), null);
+	response.setHeader("Accept-Ranges", "bytes");
+
+	long[] range = null;
+	String rangeHeader = request.getHeader("Range");
+	if (rangeHeader != null && 
+	    isCurrent(request, etag, data)) {
+	    range = parseRange(rangeHeader, length);
+	}
+
+	if (range == null) {
+	    response.setHeader("Content-Length", String.valueOf(length));
+	    return out;
+	}
+	if (range.length == 0) {
+	    if (debug()) debug(clientRequest + "unsatisfiable range " + 
+			       rangeHeader);
+	    response.setStatus
+		(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+	    response.setHeader("Content-Range", "bytes */" + length);
+	    response.setHeader("Content-Length", "0");
+	    return null;
+	}
+
+	if (debug()) debug(clientRequest + "sending bytes " + range[0] + 
+			   "-" + range[1] + " of " + length);
+	response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+	response.setHeader("Content-Range", "bytes " + range[0] + "-" + 
+			   range[1] + "/" + length);
+	response.setHeader("Content-Length", 
+			   String.valueOf(range[1] - range[0] + 1));
+	return new RangeOutputStream(out, range[0], range[1]);
+    }
+
+    /** Checks the If-Range header of a request, which may hold
+     *  either an entity tag or a date.
+     * @return True if there is no If-Range header, or if the
+     * response hasn't changed since the client's copy was sent
+     */
+    protected boolean isCurrent(HttpServletRequest request, 
+				String etag, 
+				DataHandle data) {
+	String ifRange = request.getHeader("If-Range");
+	if (ifRange == null) {
+	    return true;
+	}
+	ifRange = ifRange.trim();
+	if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+	    return ifRange.equals(etag);
+	}
+	try {
+	    long date = request.getDateHeader("If-Range");
+	    return date / 1000 == data.getCreateTime() / 1000;
+	} catch (IllegalArgumentException iae) {
+	    return false;
+	}
+    }
+
+    /** Parses the value of a Range header.
+     * @return The positions of the first and last bytes requested;
+     * an empty array if the range is beyond the end of the response;
+     * or null if the header is not a single byte range, in which
+     * case the complete response should be sent
+     */
+    protected long[] parseRange(String header, long length) {
+	header = header.trim();
+	if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+	    return null;
+	}
+	String spec = header.substring(6).trim();
+	int dash = spec.indexOf('-');
+	if (dash < 0) {
+	    return null;
+	}
+	long first;
+	long last;
+	try {
+	    String firstText = spec.substring(0, dash).trim();
+	    String lastText = spec.substring(dash + 1).trim();
+	    if (firstText.length() == 0) {
+		// the last n bytes
+		long suffix = Long.parseLong(lastText);
+		if (suffix <= 0) {
+		    return new long[0];
+		}
+		first = Math.max(length - suffix, 0);
+		last = length - 1;
+	    } else {
+		first = Long.parseLong(firstText);
+		if (lastText.length() == 0) {
+		    last = length - 1;
+		} else {
+		    last = Math.min(Long.parseLong(lastText), length - 1);
+		}
+	    }
+	} catch (NumberFormatException nfe) {
+	    return null;
+	}
+	if (first < 0 || last < first) {
+	    return (first >= length) ? new long[0] : null;
+	}
+	return new long[] { first, last };
+    }
+
+    /** Creates a compressor that uses the thread pool for large
+     *  responses */
+    protected synchronized ParallelDeflaterOutputStream createCompressor
+	(OutputStream out, boolean gzip) 
+	throws IOException {
+
+	return new ParallelDeflaterOutputStream
+	    (out, gzip, level, blockSize, threshold, pool, threads * 2);
+    }
+
+    protected class CompressorThreadFactory
+	implements ThreadFactory {
+
+	public Thread newThread(Runnable r) {
+	    Thread thread = new Thread(r, "compressor-" + (++count));
+	    thread.setDaemon(true);
+	    return thread;
+	}
+
+	protected int count;
+    }
+
+    protected int level;
+    protected int blockSize;
+    protected long threshold;
+    protected int threads;
+    protected ExecutorService pool;
+
 }
 
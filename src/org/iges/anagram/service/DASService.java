@@ -8,6 +8,7 @@ import java.io.*;
 import java.util.Date;
 import javax.servlet.http.*;
 import org.iges.anagram.*;
+import org.iges.util.ParallelDeflaterOutputStream;
 
 /** Provides the DODS Data Attribute Structure for a data object */
 public class DASService 
@@ -32,11 +33,23 @@ public class DASService
 	response.setHeader("XDODS-Server", "dods/3.2");
 	response.setHeader("XDAP", "3.2");
 	response.setHeader("Content-Description", "dods_das");
-	response.setDateHeader("Last-Modified", data.getCreateTime());
+	if (!checkModified(clientRequest, data.getCreateTime(), 
+			   negotiateEncoding(clientRequest))) {
+	    return;
+	}
 	
 	try {
+	    OutputStream out = response.getOutputStream();
+	    ParallelDeflaterOutputStream compressor = 
+		startCompression(clientRequest, out);
+	    if (compressor != null) {
+		out = compressor;
+	    }
 	    server.getTool().writeDAS(data, 
-				      response.getOutputStream());
+				      out);
+	    if (compressor != null) {
+		compressor.finish();
+	    }
 	} catch (IOException ioe) {}
     }
 	
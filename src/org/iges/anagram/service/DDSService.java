@@ -11,6 +11,7 @@ import javax.servlet.http.*;
 import dods.dap.Server.ServerDDS;
 
 import org.iges.anagram.*;
+import org.iges.util.ParallelDeflaterOutputStream;
 
 /** Provides the DODS Data Descriptor Structure for a data object */
 public class DDSService 
@@ -35,12 +36,24 @@ public class DDSService
 	response.setHeader("XDODS-Server", "dods/3.2");
 	response.setHeader("XDAP", "3.2");
 	response.setHeader("Content-Description", "dods_dds");
-	response.setDateHeader("Last-Modified", data.getCreateTime());
+	if (!checkModified(clientRequest, data.getCreateTime(), 
+			   negotiateEncoding(clientRequest))) {
+	    return;
+	}
 	
 	try {
+	    OutputStream out = response.getOutputStream();
+	    ParallelDeflaterOutputStream compressor = 
+		startCompression(clientRequest, out);
+	    if (compressor != null) {
+		out = compressor;
+	    }
 	    server.getTool().writeDDS(data, 
 			  clientRequest.getCE(), 
-			  response.getOutputStream());
+			  out);
+	    if (compressor != null) {
+		compressor.finish();
+	    }
 	} catch (IOException ioe) {}
     }
 	
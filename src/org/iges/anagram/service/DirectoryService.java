@@ -38,6 +38,7 @@ public class DirectoryService
 	long updateTime = server.getLastConfigTime();
 	List dataHandles = new ArrayList();
 	List subdirs = new ArrayList();
+	StringBuffer unavailable = new StringBuffer();
 	synchronized (subDir) {
 	    Map entries = ((DirHandle)subDir).getEntries(false);
 	    Iterator it = entries.entrySet().iterator();
@@ -46,17 +47,25 @@ public class DirectoryService
 		if (current.getValue() instanceof DirHandle) {
 		    subdirs.add(current.getValue());
 		} else {
-		    dataHandles.add(current.getValue());
-		    updateTime = Math.max
-			(updateTime,
-			 ((DataHandle)current.getValue()).getCreateTime());
+		    DataHandle data = (DataHandle)current.getValue();
+		    dataHandles.add(data);
+		    updateTime = Math.max(updateTime, data.getCreateTime());
+		    if (!data.isAvailable()) {
+			unavailable.append(data.getName());
+			unavailable.append(' ');
+		    }
 		}
 	    }
 	}
 
 	clientRequest.getHttpResponse().setHeader("CacheControl", "no-cache");
-	clientRequest.getHttpResponse().setDateHeader("Last-Modified", 
-						      updateTime);
+	// the listing also depends on which entries the client may
+	// see, and which are unavailable
+	if (!checkModified(clientRequest, updateTime, 
+			   privilege.getName() + " " + 
+			   getBaseURL(clientRequest) + " " + unavailable)) {
+	    return;
+	}
 	
 	PrintStream page = startHTML(clientRequest);
 	if (page == null) {
@@ -11,7 +11,8 @@ import javax.servlet.http.*;
 import dods.dap.*;
 import dods.dap.Server.*;
 
-import org.iges.util.Spooler;
+import org.iges.util.DeflatedFile;
+import org.iges.util.ParallelDeflaterOutputStream;
 
 import org.iges.anagram.*;
 
@@ -39,7 +40,10 @@ public class InfoService
 	response.setHeader("XDODS-Server", "dods/3.2");
 	response.setHeader("XDAP", "3.2");
 	response.setHeader("Content-Description", "dods_info");
-	response.setDateHeader("Last-Modified", data.getCreateTime());
+	if (!checkModified(clientRequest, data.getCreateTime(), 
+			   negotiateEncoding(clientRequest))) {
+	    return;
+	}
 	
 	File cache = server.getStore().get(this, 
 					   data.getCompleteName(), 
@@ -51,12 +55,17 @@ public class InfoService
 	}
 
 	try {
-	    InputStream in = 
-		new BufferedInputStream
-		    (new FileInputStream
-		    (cache));
-	    Spooler.spool(in, response.getOutputStream());
-	    in.close();
+	    OutputStream out = response.getOutputStream();
+	    ParallelDeflaterOutputStream compressor = 
+		startCompression(clientRequest, out);
+	    if (compressor != null) {
+		out = compressor;
+	    }
+	    // sends the compressed copy of the cache file if compressing
+	    DeflatedFile.spool(cache, out);
+	    if (compressor != null) {
+		compressor.finish();
+	    }
 	} catch (IOException ioe) {}
 
     }
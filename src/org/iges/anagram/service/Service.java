@@ -7,8 +7,10 @@ package org.iges.anagram.service;
 import java.io.*;
 import java.util.*;
 import java.text.*;
+import java.util.zip.Deflater;
 import javax.servlet.http.*;
 import org.iges.anagram.*;
+import org.iges.util.ParallelDeflaterOutputStream;
 
 /** A handler for a particular type of client request. All server output
  *  to the network is generated by the service modules.
@@ -36,6 +38,14 @@ public abstract class Service
 	return enabled;
     }
 
+    /** Returns true if requests to this service may take a long time
+     *  to complete, for instance because they involve running GrADS.
+     *  Such requests may be handed to a separate pool of threads.
+     */
+    public boolean isLongRunning() {
+	return false;
+    }
+
     /** Returns the name of this service. Used to build the module ID,
      *  and to map URLs to services. 
      */
@@ -207,6 +217,179 @@ public abstract class Service
 	}
     }
 
+    /** Convenience method that sets the Last-Modified and ETag
+     *  headers of a response, and answers a conditional request
+     *  (If-None-Match or If-Modified-Since) if the client's copy is
+     *  still current. It should be called before any work is done to
+     *  produce the response.
+     * @param lastModified Time at which the response last changed
+     * @param variant Anything the response depends on besides the
+     * service, the path, the constraint expression and the time, such
+     * as the content encoding; or null
+     * @return True if the response must be sent; false if a 304 (Not
+     * Modified) response has been sent instead, and nothing more
+     * should be written
+     */
+    protected boolean checkModified(ClientRequest clientRequest, 
+				    long lastModified, 
+				    String variant) {
+
+	HttpServletRequest request = clientRequest.getHttpRequest();
+	HttpServletResponse response = clientRequest.getHttpResponse();
+	String etag = getETag(clientRequest, lastModified, variant);
+	response.setDateHeader("Last-Modified", lastModified);
+	response.setHeader("ETag", etag);
+
+	boolean current;
+	String ifNoneMatch = request.getHeader("If-None-Match");
+	if (ifNoneMatch != null) {
+	    // takes precedence over If-Modified-Since
+	    current = false;
+	    String[] tags = ifNoneMatch.split(",");
+	    for (int i = 0; i < tags.length; i++) {
+		String tag = tags[i].trim();
+		if (tag.startsWith("W/")) {
+		    tag = tag.substring(2);
+		}
+		if (tag.equals("*") || tag.equals(etag)) {
+		    current = true;
+		}
+	    }
+	} else {
+	    long ifModifiedSince;
+	    try {
+		ifModifiedSince = request.getDateHeader("If-Modified-Since");
+	    } catch (IllegalArgumentException iae) {
+		ifModifiedSince = -1;
+	    }
+	    // HTTP dates are only accurate to the second
+	    current = (ifModifiedSince >= 0 && 
+		       lastModified / 1000 <= ifModifiedSince / 1000);
+	}
+
+	if (current) {
+	    if (debug()) debug(clientRequest + "not modified");
+	    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+	    return false;
+	}
+	return true;
+    }
+
+    /** Creates a strong entity tag for a response. Responses have
+     *  the same tag only if they are byte for byte the same, so
+     *  the tag depends on everything that can change the response.
+     * @see #checkModified
+     */
+    protected String getETag(ClientRequest clientRequest, 
+			     long lastModified, 
+			     String variant) {
+
+	Handle handle = clientRequest.getHandle();
+	String key = getServiceName() + " " + 
+	    ((handle != null) ? 
+	     handle.getCompleteName() : clientRequest.getDataPath()) + 
+	    " " + clientRequest.getCE() + " " + variant;
+	return "\"" + Long.toHexString(lastModified) + "-" + 
+	    Integer.toHexString(key.hashCode()) + "\"";
+    }
+
+    /** Convenience method for services that can compress their
+     *  output. Picks a content encoding that the client accepts, and
+     *  sets the response headers for it.
+     * @return A stream that compresses the data written to it and
+     * sends it to the stream given, or null if the response should
+     * not be compressed. The caller must call finish() on it.
+     */
+    protected ParallelDeflaterOutputStream startCompression
+	(ClientRequest clientRequest, OutputStream out) 
+	throws IOException {
+
+	HttpServletResponse response = clientRequest.getHttpResponse();
+	String encoding = negotiateEncoding(clientRequest);
+	if (encoding == null) {
+	    return null;
+	}
+	if (debug()) debug(clientRequest + "using " + encoding + 
+			   " compression");
+	response.setHeader("Content-Encoding", encoding);
+	return createCompressor(out, encoding.equals("gzip"));
+    }
+
+    /** Picks the content encoding that startCompression() will use
+     *  for a request, and sets the Vary header, since the response
+     *  depends on the Accept-Encoding header.
+     * @return "gzip", "deflate", or null if the response will not
+     * be compressed
+     */
+    protected String negotiateEncoding(ClientRequest clientRequest) {
+	clientRequest.getHttpResponse().setHeader("Vary", "Accept-Encoding");
+	return chooseEncoding
+	    (clientRequest.getHttpRequest().getHeader("Accept-Encoding"));
+    }
+
+    /** Creates the stream used by startCompression(). By default, the
+     *  data is compressed at the default level on the calling
+     *  thread. */
+    protected ParallelDeflaterOutputStream createCompressor
+	(OutputStream out, boolean gzip) 
+	throws IOException {
+
+	return new ParallelDeflaterOutputStream
+	    (out, gzip, Deflater.DEFAULT_COMPRESSION, 
+	     COMPRESSION_BLOCK_SIZE, Long.MAX_VALUE, null, 1);
+    }
+
+    /** Picks the content encoding to use, from the value of the
+     *  Accept-Encoding header.
+     * @return "gzip", "deflate", or null if the response should not
+     * be compressed
+     */
+    protected String chooseEncoding(String accept) {
+	if (accept == null) {
+	    return null;
+	}
+	float gzipQ = -1;
+	float deflateQ = -1;
+	float anyQ = 0;
+	String[] codings = accept.split(",");
+	for (int i = 0; i < codings.length; i++) {
+	    String[] parts = codings[i].split(";");
+	    String coding = parts[0].trim().toLowerCase();
+	    float q = 1;
+	    for (int j = 1; j < parts.length; j++) {
+		String param = parts[j].trim();
+		if (param.startsWith("q=")) {
+		    try {
+			q = Float.parseFloat(param.substring(2));
+		    } catch (NumberFormatException nfe) {
+			q = 0;
+		    }
+		}
+	    }
+	    if (coding.equals("gzip") || coding.equals("x-gzip")) {
+		gzipQ = q;
+	    } else if (coding.equals("deflate")) {
+		deflateQ = q;
+	    } else if (coding.equals("*")) {
+		anyQ = q;
+	    }
+	}
+	if (gzipQ < 0) {
+	    gzipQ = anyQ;
+	}
+	if (deflateQ < 0) {
+	    deflateQ = anyQ;
+	}
+	if (gzipQ <= 0 && deflateQ <= 0) {
+	    return null;
+	}
+	// DODS clients have always been sent deflate, so prefer it
+	return (deflateQ >= gzipQ) ? "deflate" : "gzip";
+    }
+
+    /** Block size for compressors created by createCompressor() */
+    protected static final int COMPRESSION_BLOCK_SIZE = 65536;
+
     protected Hashtable getQueryParams(ClientRequest clientRequest) {
 	HttpServletRequest request = clientRequest.getHttpRequest();
 
@@ -58,10 +58,15 @@ public class THREDDSCatalogService
 	}	    
 	  
 	response.setContentType("text/xml");
-	response.setDateHeader("Last-Modified", server.getLastConfigTime());
 
 	PrintStream page;
 	try {
+	    if (!checkModified(clientRequest, server.getLastConfigTime(), 
+			       catalog.getVersion() + " " + recurse + " " + 
+			       getBaseURL(clientRequest))) {
+		return;
+	    }
+
 	    page = 
 		new PrintStream
 		(response.getOutputStream());
@@ -153,7 +158,10 @@ public class THREDDSCatalogService
 				DirHandle dir, String indent, boolean recurse) 
 	    throws ModuleException{
 
-	    Collection datasets = dir.getEntries(false).values();
+	    Collection datasets;
+	    synchronized (dir) {
+		datasets = new ArrayList(dir.getEntries(false).values());
+	    }
 	
 	    Iterator it = datasets.iterator();
 	    while (it.hasNext()) {
@@ -85,7 +85,7 @@ public class GradsAnalysisModule
 		String.valueOf((int)(storageLimit * 1000)),
 		String.valueOf(parsed.dataNames.size()),
 		buildDatasetNameList(handles),
-	    });
+	    }, privilege);
 	    
 	    if (timeLimit > 0) {
 		task.run(timeLimit * 1000);
@@ -266,6 +266,13 @@ public class GradsAnalysisModule
 					   "expected analysis expression");
 	    }
 	    expression = st.nextToken().replace(' ', '+');
+	    for (int i = 0; i < expression.length(); i++) {
+		if (Character.isISOControl(expression.charAt(i))) {
+		    // a line break would end the GrADS command early
+		    throw new AnagramException("invalid character in " + 
+					       "analysis expression");
+		}
+	    }
 	}
 
 	protected void parseBounds(StringTokenizer st) 
@@ -7,7 +7,7 @@ package org.iges.grads.server;
 import java.io.*;
 import java.util.*;
 
-import org.iges.util.Spooler;
+import org.iges.util.DeflatedFile;
 
 import dods.dap.*;
 import dods.dap.Server.*;
@@ -17,7 +17,9 @@ import org.iges.grads.server.dap.*;
 
 /** Provides DODS metadata and subsets for GrADS data objects.
  *  This is the main back end for the GradsTool class. 
- *  Uses cache files for DDS, DAS, and INFO data.
+ *  Uses cache files for DDS, DAS, and INFO data. When the response
+ *  is being compressed, a compressed copy of each cache file is kept
+ *  next to it and sent instead (see org.iges.util.DeflatedFile).
  */
 public class GradsDODSModule 
     extends AbstractModule {
@@ -38,12 +40,49 @@ public class GradsDODSModule
 
 	int bufferSize = (int)setting.getNumAttribute("buffer_size", 16384);
 
+	// data files of direct-subset datasets are kept mapped between
+	// requests; map_files="0" turns this off
+	int mapFiles = (int)setting.getNumAttribute("map_files", 64);
+	long mapWindow = 
+	    setting.getNumAttribute("map_window", 256) * 1024 * 1024;
+	if (mapFiles > 0) {
+	    if (mappings == null) {
+		mappings = new GradsMappedFiles(mapFiles, mapWindow);
+	    } else {
+		mappings.setLimits(mapFiles, mapWindow);
+	    }
+	} else {
+	    mappings = null;
+	}
+
+	// subset files generated by GrADS may be kept for later
+	// requests; subset_cache="0" (the default) turns this off
+	long cacheSize = 
+	    setting.getNumAttribute("subset_cache", 0) * 1024 * 1024;
+	int cacheEntries = 
+	    (int)setting.getNumAttribute("subset_cache_entries", 1000);
+	if (cacheSize <= 0) {
+	    cacheEntries = 0;
+	}
+	int tileSize = (int)setting.getNumAttribute("subset_tile", 0);
+	if (subsetCache == null) {
+	    subsetCache = new GradsSubsetCache(cacheSize, cacheEntries);
+	} else {
+	    subsetCache.setLimits(cacheSize, cacheEntries);
+	}
+
 	store = server.getStore();
 	baseTypeFactory = new GradsServerFactory();
-	gridSubsetter = new GradsGridSubsetter();
-	gridSubsetter.init(server, this);
-	gridSubsetter.setTool(tool);
-	gridSubsetter.setBufferSize(bufferSize);
+	GradsGridSubsetter newGridSubsetter = new GradsGridSubsetter();
+	newGridSubsetter.init(server, this);
+	newGridSubsetter.setTool(tool);
+	newGridSubsetter.setBufferSize(bufferSize);
+	newGridSubsetter.setMappings(mappings);
+	newGridSubsetter.setCache(subsetCache);
+	newGridSubsetter.setTileSize((cacheEntries > 0) ? tileSize : 0);
+	newGridSubsetter.setStreaming
+	    (setting.getAttribute("stream_subsets", "false").equals("true"));
+	gridSubsetter = newGridSubsetter;
 
 	stnSubsetter = new GradsStnSubsetter();
 	stnSubsetter.init(server, this);
@@ -131,17 +170,13 @@ public class GradsDODSModule
 	throws ModuleException {
 
 	if (ce == null) {
-	    InputStream ddsStream = loadDDS(data);
+	    File ddsFile = getCacheFile(data, ".dds");
 	    if (debug()) log.debug(this, "writing dds for " + data + 
 				   " to stream");
 	    try {
-		Spooler.spool(ddsStream, out);
+		DeflatedFile.spool(ddsFile, out);
 	    } catch (IOException ioe){
 		throw new ModuleException(this, "io error on dds write", ioe);
-	    } finally {
-		try {
-		    ddsStream.close();
-		} catch (IOException ioe) {}
 	    }
 	} else {
 	    ServerDDS dds = getDDS(data, ce);
@@ -159,16 +194,12 @@ public class GradsDODSModule
 			 OutputStream out)
 	throws ModuleException {
 
-	InputStream dasStream = loadDAS(data);
+	File dasFile = getCacheFile(data, ".das");
 	if (debug()) log.debug(this, "writing das for " + data + " to stream");
 	try {
-	    Spooler.spool(dasStream, out);
+	    DeflatedFile.spool(dasFile, out);
 	} catch (IOException ioe){
 	    throw new ModuleException(this, "io error on das write", ioe);
-	} finally {
-	    try {
-		dasStream.close();
-	    } catch (IOException ioe) {}
 	}
     }
 
@@ -179,24 +210,12 @@ public class GradsDODSModule
 			     OutputStream out) 
 	throws ModuleException {
 
-	GradsDataInfo gradsInfo = (GradsDataInfo)data.getToolInfo();
-
-	File infoFile =  store.get(this, gradsInfo.getDODSName() + ".info", 
-				   data.getCreateTime());
-	synchronized(data) {
-	    if (!infoFile.exists()) {
-		extract(data);
-	    }
-	}
+	File infoFile = getCacheFile(data, ".info");
 
 	if (debug()) log.debug(this, "loading web info for " + data);
 	
 	try {
-	    InputStream infoStream = new BufferedInputStream
-		(new FileInputStream
-		    (infoFile));
-	    Spooler.spool(infoStream, out);
-	    infoStream.close();
+	    DeflatedFile.spool(infoFile, out);
 	} catch (FileNotFoundException fnfe) {
 	    throw new ModuleException(this, infoFile.getAbsolutePath() + 
 				      " not found");
@@ -214,24 +233,12 @@ public class GradsDODSModule
 			     OutputStream out) 
 	throws ModuleException {
 
-	GradsDataInfo gradsInfo = (GradsDataInfo)data.getToolInfo();
-
-	File infoFile =  store.get(this, gradsInfo.getDODSName() + ".thredds", 
-				   data.getCreateTime());
-	synchronized(data) {
-	    if (!infoFile.exists()) {
-		extract(data);
-	    }
-	}
+	File infoFile = getCacheFile(data, ".thredds");
 
 	if (debug()) log.debug(this, "loading THREDDS tag for " + data);
 	
 	try {
-	    InputStream infoStream = new BufferedInputStream
-		(new FileInputStream
-		    (infoFile));
-	    Spooler.spool(infoStream, out);
-	    infoStream.close();
+	    DeflatedFile.spool(infoFile, out);
 	} catch (FileNotFoundException fnfe) {
 	    throw new ModuleException(this, infoFile.getAbsolutePath() + 
 				      " not found");
@@ -240,7 +247,9 @@ public class GradsDODSModule
 	} 
     }
 
-    /** Writes a data subset to a stream in binary format. */
+    /** Writes a data subset to a stream in binary format. If the
+     *  stream is an org.iges.util.RangeOutputStream, variables that
+     *  fall outside the range are skipped rather than subsetted. */
     public void writeBinaryData(DataHandle data, 
 				String ce, 
 				Privilege privilege,
@@ -248,21 +257,14 @@ public class GradsDODSModule
 	throws ModuleException {
 
 	// Evaluate constraint
-	ServerDDS dds = getDDS(data, null);
-	CEEvaluator evaluator = new CEEvaluator(dds, clauseFactory);
-	try {
-	    evaluator.parseConstraint(ce);
-	} catch (Exception e) {
-            throw new ModuleException(this, "constraint parsing failed", e);
-	} 
-
-	if (debug()) debug("evaluated constraint: " + ce);
+	CEEvaluator evaluator = evaluateConstraint(data, ce);
 
 	// Print DDS for subset
-	PrintStream ddsOut = new PrintStream(out);
-	dds.printConstrained(ddsOut);
-	ddsOut.println("Data:");
-	ddsOut.flush();
+	try {
+	    out.write(getDataHeader(evaluator));
+	} catch (IOException ioe) {
+	    throw new ModuleException(this, "io error on DDS write", ioe);
+	}
 
 	if (debug()) log.debug(this, "streamed DDS to client");
 
@@ -278,12 +280,62 @@ public class GradsDODSModule
 	long subsetSize = privilege.getNumAttribute("dods_subset_size", 
 					       defaultSubsetSize);
 	if (gradsInfo.getDataType() == GradsDataInfo.GRID) {
-	    gridSubsetter.subset(data, evaluator, subsetSize, false, out);
+	    gridSubsetter.subset(data, evaluator, subsetSize, false, 
+				 privilege, out);
 	} else if (gradsInfo.getDataType() == GradsDataInfo.STN) {
-	    stnSubsetter.subset(data, evaluator, subsetSize, false, out);
+	    stnSubsetter.subset(data, evaluator, subsetSize, false, 
+				 privilege, out);
 	} 	
     }
 
+    /** Calculates the length of a binary data subset. This is only
+     *  known in advance for gridded data, since the number of
+     *  reports in a station data subset depends on the data. */
+    public long getBinaryDataLength(DataHandle data, 
+				    String ce, 
+				    Privilege privilege)
+	throws ModuleException {
+
+	GradsDataInfo gradsInfo = (GradsDataInfo)data.getToolInfo();
+	if (gradsInfo.getDataType() != GradsDataInfo.GRID) {
+	    return -1;
+	}
+	CEEvaluator evaluator = evaluateConstraint(data, ce);
+	long length = gridSubsetter.getBinaryLength(evaluator);
+	if (length < 0) {
+	    return -1;
+	}
+	return getDataHeader(evaluator).length + length;
+    }
+
+    /** Parses a constraint expression against the full DDS of a
+     *  dataset */
+    protected CEEvaluator evaluateConstraint(DataHandle data, String ce)
+	throws ModuleException {
+
+	ServerDDS dds = getDDS(data, null);
+	CEEvaluator evaluator = new CEEvaluator(dds, clauseFactory);
+	try {
+	    evaluator.parseConstraint(ce);
+	} catch (Exception e) {
+            throw new ModuleException(this, "constraint parsing failed", e);
+	} 
+
+	if (debug()) debug("evaluated constraint: " + ce);
+	return evaluator;
+    }
+
+    /** Returns the text that comes before the data in a binary
+     *  response: the DDS of the subset, followed by "Data:" */
+    protected byte[] getDataHeader(CEEvaluator evaluator) {
+	ByteArrayOutputStream header = new ByteArrayOutputStream();
+	PrintStream ddsOut = new PrintStream(header);
+	evaluator.getDDS().printConstrained(ddsOut);
+	ddsOut.println("Data:");
+	ddsOut.flush();
+	return header.toByteArray();
+    }
+
     /** Writes a data subset to a stream in ASCII format. */
     public void writeASCIIData(DataHandle data, 
 			       String ce, 
@@ -310,26 +362,39 @@ public class GradsDODSModule
 	long subsetSize = privilege.getNumAttribute("dods_subset_size", 
 					       defaultSubsetSize);
 	if (gradsInfo.getDataType() == GradsDataInfo.GRID) {
-	    gridSubsetter.subset(data, evaluator, subsetSize, true, out);
+	    gridSubsetter.subset(data, evaluator, subsetSize, true, 
+				 privilege, out);
 	} else if (gradsInfo.getDataType() == GradsDataInfo.STN) {
-	    stnSubsetter.subset(data, evaluator, subsetSize, true, out);
+	    stnSubsetter.subset(data, evaluator, subsetSize, true, 
+				 privilege, out);
 	} 	
 
     }
 
 
-    protected InputStream loadDDS(DataHandle data)
+    /** Returns one of the cache files for a data object, extracting
+     *  its metadata first if the file doesn't exist or is out of date.
+     * @param suffix ".dds", ".das", ".info" or ".thredds"
+     */
+    protected File getCacheFile(DataHandle data, String suffix)
 	throws ModuleException {
 
 	GradsDataInfo gradsInfo = (GradsDataInfo)data.getToolInfo();
 
-	File ddsFile =  store.get(this, gradsInfo.getDODSName() + ".dds", 
-				   data.getCreateTime());
+	File file =  store.get(this, gradsInfo.getDODSName() + suffix, 
+			       data.getCreateTime());
 	synchronized(data) {
-	    if (!ddsFile.exists()) {
+	    if (!file.exists()) {
 		extract(data);
 	    }
 	}
+	return file;
+    }
+
+    protected InputStream loadDDS(DataHandle data)
+	throws ModuleException {
+
+	File ddsFile = getCacheFile(data, ".dds");
 
 	if (debug()) log.debug(this, "loading dds for " + data);
 	
@@ -346,15 +411,7 @@ public class GradsDODSModule
     protected InputStream loadDAS(DataHandle data)
 	throws ModuleException {
 
-	GradsDataInfo gradsInfo = (GradsDataInfo)data.getToolInfo();
-
-	File dasFile =  store.get(this, gradsInfo.getDODSName() + ".das", 
-				   data.getCreateTime());
-	synchronized(data) {
-	    if (!dasFile.exists()) {
-		extract(data);
-	    }
-	}
+	File dasFile = getCacheFile(data, ".das");
 
 	if (debug()) log.debug(this, "loading das for " + data);
 
@@ -406,7 +463,27 @@ public class GradsDODSModule
 	clauseFactory = new ClauseFactory(dummyFunctions);
     }
 
+    /** Deletes any cached subsets of the dataset given, because it
+     *  has changed */
+    public void invalidateSubsets(String name) {
+	subsetCache.invalidate(name);
+    }
+
+    /** Returns a summary of the mapped file and subset caches */
+    public String getStatistics() {
+	GradsMappedFiles currentMappings = mappings;
+	String mapped;
+	if (currentMappings == null) {
+	    mapped = "mapped files: disabled";
+	} else {
+	    mapped = currentMappings.getStatistics();
+	}
+	return mapped + "\n" + subsetCache.getStatistics();
+    }
+
     protected GradsSubsetter gridSubsetter;
+    protected GradsMappedFiles mappings;
+    protected GradsSubsetCache subsetCache;
     protected GradsSubsetter stnSubsetter;
 
     protected long defaultSubsetSize;
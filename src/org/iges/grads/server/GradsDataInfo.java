@@ -184,14 +184,15 @@ public class GradsDataInfo
      *  mechanism. This information is determined at extract time rather 
      *  than at import time, so cannot be passed to the constructor.
      */
-    public void setCTL(int xSize,
-		       int ySize,
-		       int zSize,
-		       int tSize,
-		       int eSize,
-		       List vars,
-		       List levels) {
+    public CTL setCTL(int xSize,
+		      int ySize,
+		      int zSize,
+		      int tSize,
+		      int eSize,
+		      List vars,
+		      List levels) {
 	ctl = new CTL(xSize, ySize, zSize, tSize, eSize, vars, levels);
+	return ctl;
     }
 
     /** Returns an object containing the information needed 
@@ -263,7 +264,10 @@ public class GradsDataInfo
     protected CTL ctl;
     protected String format;
 
-    /** Holds the information needed for the direct subset mechanism.
+    /** Holds the information needed for the direct subset mechanism:
+     *  the dimensions and variables of the dataset, and how the data is
+     *  laid out in the binary file(s).
+     *  @see GradsGridReader
      */
     public class CTL 
 	implements Serializable {
@@ -285,6 +289,46 @@ public class GradsDataInfo
 	    this.xySize = (long)xSize * (long)ySize;
 	    this.xyzSize = (long)xySize * getLevelsUpTo(levels.size());
 	    this.xyztSize = (long)tSize * (long)xyzSize; 
+	    this.bigEndian = true;
+	}
+
+	/** Sets the data file, or the template for the data files
+	 *  if the dataset is split over several files. */
+	public void setDataFile(File dataFile, GradsTemplate template) {
+	    this.dataFile = dataFile;
+	    this.template = template;
+	}
+
+	/** Sets the byte order of the data file(s) */
+	public void setBigEndian(boolean bigEndian) {
+	    this.bigEndian = bigEndian;
+	}
+
+	/** Sets the sizes in bytes of the headers and trailers given by
+	 *  the FILEHEADER, THEADER, XYHEADER, XYTRAILER and TRAILERBYTES
+	 *  entries */
+	public void setHeaders(long fileHeader,
+			       long tHeader,
+			       long xyHeader,
+			       long xyTrailer,
+			       long tTrailer) {
+	    this.fileHeader = fileHeader;
+	    this.tHeader = tHeader;
+	    this.xyHeader = xyHeader;
+	    this.xyTrailer = xyTrailer;
+	    this.tTrailer = tTrailer;
+	}
+
+	/** Sets the options that affect the order of values in the file */
+	public void setOptions(boolean yRev, boolean zRev, boolean sequential) {
+	    this.yRev = yRev;
+	    this.zRev = zRev;
+	    this.sequential = sequential;
+	}
+
+	/** Sets the missing data value */
+	public void setUndef(float undef) {
+	    this.undef = undef;
 	}
 
 	/** Returns the index of a given variable in the dataset */
@@ -370,6 +414,22 @@ public class GradsDataInfo
 	List levels;	
 	boolean hasLevels;
 	boolean hasEnsembles;
+
+	/** Data file, if the dataset is not templated */
+	File dataFile;
+	/** Data file names, if the dataset is templated */
+	GradsTemplate template;
+	boolean bigEndian;
+	long fileHeader;
+	long tHeader;
+	long xyHeader;
+	long xyTrailer;
+	long tTrailer;
+	boolean yRev;
+	boolean zRev;
+	/** Each XY grid is a Fortran unformatted record */
+	boolean sequential;
+	float undef;
     }
 	
 }
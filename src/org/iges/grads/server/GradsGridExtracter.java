@@ -5,7 +5,9 @@
 package org.iges.grads.server;
 
 import java.io.*;
+import java.nio.ByteOrder;
 import java.util.*;
+import org.iges.util.FileResolver;
 import org.iges.util.Range;
 import org.iges.util.Strings;
 import org.iges.anagram.*;
@@ -55,10 +57,13 @@ public class GradsGridExtracter
 	this.levelCountList = new ArrayList();
 	this.descriptionList = new ArrayList();
 
-	boolean bigEndian = false;	
 	if (gradsInfo.isDirectSubset()) {
 	    this.unsortedVariableList = new ArrayList();
 	    this.unsortedLevelCountList = new ArrayList();
+	    // GrADS assumes the native byte order unless told otherwise
+	    this.bigEndian = 
+		(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN);
+	    this.ensNames = new ArrayList();
 	}
 
 	// begin parsing
@@ -82,14 +87,12 @@ public class GradsGridExtracter
 			continue;
 		    if (gradsInfo.isDirectSubset() &&
 			(line.startsWith("dtype") 
-			 || line.startsWith("fileheader")
-			 || line.startsWith("xyheader")
-			 || line.startsWith("theader"))) {
+			 || line.startsWith("pdef")
+			 || line.startsWith("chsub"))) {
 			useDirect = false;
 			throw new AnagramException
 			    ("direct subsetting cannot be enabled if " +
-			     "DTYPE, FILEHEADER, XYHEADER, or THEADER " + 
-			     "are present");
+			     "DTYPE, PDEF, or CHSUB are present");
 		    }				
 			
 		    if (inEnsSection) {
@@ -97,6 +100,12 @@ public class GradsGridExtracter
 			    inEnsSection = false; 
 			    continue; // done skipping ensemble definitions
 			} 
+			if (gradsInfo.isDirectSubset()) {
+			    // needed for %e templates
+			    ensNames.add(new StringTokenizer(original, " ")
+					 .nextToken());
+			}
+			continue;
 		    }
 		    if (inVarSection) {
 			if (line.startsWith("endvars")) {
@@ -123,15 +132,17 @@ public class GradsGridExtracter
 			}
 			Long levelCount = Long.valueOf(levelsField);
 
-			// ignore units info except for direct subset
+			// ignore units info except for direct subset, 
+			// where a -1 code means the data isn't stored as
+			// floats in the usual order
 			String units = st.nextToken(); 
 			if (gradsInfo.isDirectSubset()
-			    && !units.equals("99")) {
+			    && units.startsWith("-1")) {
 			    useDirect = false;
 			    throw new AnagramException
 				("units set to " + units + " for " + 
-				 variable + "; must be '99' to enable " + 
-				 " direct subsetting");
+				 variable + "; special codes are not " + 
+				 "supported for direct subsetting");
 			}
 			    
 
@@ -167,19 +178,8 @@ public class GradsGridExtracter
 			// not in var section or edef section, look for general metadata
 			String label = st.nextToken();
 
-			if (gradsInfo.isDirectSubset() && 
-			    label.equals("options")) {
-			    while (st.hasMoreTokens()) {
-				if (! st.nextToken().equals("big_endian")) {
-				    useDirect = false;
-				    throw new AnagramException
-					("only 'big_endian' is allowed on "
-					 + "OPTIONS line when direct " +
-					 "subsetting is enabled");
-				} else {
-				    bigEndian = true;
-				}
-			    }
+			if (gradsInfo.isDirectSubset()) {
+			    parseLayout(label, st, original);
 			}
 			
 			if (label.equals("undef")) {
@@ -210,8 +210,9 @@ public class GradsGridExtracter
 			    // we can read the following directly
 			    // since tdef never uses "levels"
 			    this.tMapping = st.nextToken();
-			    st.nextToken(); // start time - redundant
-					    // due to loadDimValues() 
+			    // start time - redundant due to loadDimValues(),
+			    // except for templates
+			    tStart = st.nextToken(); 
 			    tStep = st.nextToken();
 			    dimValues.put("time", loadDimValues("time", tSize));
 			    
@@ -223,10 +224,22 @@ public class GradsGridExtracter
 			    maxValues.put("ens", String.valueOf(eSize));
 			    gotEnsemble = true;
 			    // Check if EDEF entry is the short or extended version 
-			    if (st.nextToken().equals("names")) 
+			    if (st.nextToken().equals("names")) {
 				inEnsSection = false;
-			    else 
+				if (gradsInfo.isDirectSubset()) {
+				    StringTokenizer names = 
+					new StringTokenizer(original, " ");
+				    // skip "edef n names"
+				    names.nextToken();
+				    names.nextToken();
+				    names.nextToken();
+				    while (names.hasMoreTokens()) {
+					ensNames.add(names.nextToken());
+				    }
+				}
+			    } else {
 				inEnsSection = true;
+			    }
 			} else if (label.equals("vars")) {
 			    inVarSection = true;
 			}
@@ -245,15 +258,6 @@ public class GradsGridExtracter
 	    }
 
 
-	    if (gradsInfo.isDirectSubset() && !bigEndian) {
-		useDirect = false;
-		throw new AnagramException
-		    ("direct subsetting can only be enabled for " +
-		     "big-endian data; 'OPTIONS big_endian' not found " +
-		     "in CTL file");
-	    }
-	    
-	    
 	} catch (IOException ioe) {
 	    throw new AnagramException("error parsing metadata for " + name);
 	} finally {
@@ -265,6 +269,73 @@ public class GradsGridExtracter
     
 
     
+    /** Records the CTL entries that describe the layout of the data
+     *  file(s), for the direct subset mechanism.
+     * @param label The first word of the line, in lower case
+     * @param st The rest of the line, in lower case
+     * @param original The line in its original case, for file names
+     * @throws AnagramException if the entry describes a layout that
+     * can't be subset directly
+     */
+    protected void parseLayout(String label, 
+			       StringTokenizer st,
+			       String original) 
+	throws AnagramException {
+
+	if (label.equals("dset")) {
+	    dataSet = original.substring(label.length()).trim();
+	} else if (label.equals("fileheader")) {
+	    fileHeader = Long.parseLong(st.nextToken());
+	} else if (label.equals("theader")) {
+	    tHeader = Long.parseLong(st.nextToken());
+	} else if (label.equals("xyheader")) {
+	    xyHeader = Long.parseLong(st.nextToken());
+	} else if (label.equals("xytrailer")) {
+	    xyTrailer = Long.parseLong(st.nextToken());
+	} else if (label.equals("trailerbytes")) {
+	    tTrailer = Long.parseLong(st.nextToken());
+	} else if (label.equals("options")) {
+	    while (st.hasMoreTokens()) {
+		String option = st.nextToken();
+		if (option.equals("big_endian")) {
+		    bigEndian = true;
+		} else if (option.equals("little_endian")) {
+		    bigEndian = false;
+		} else if (option.equals("byteswapped")) {
+		    bigEndian = 
+			(ByteOrder.nativeOrder() != ByteOrder.BIG_ENDIAN);
+		} else if (option.equals("yrev")) {
+		    yRev = true;
+		} else if (option.equals("zrev")) {
+		    zRev = true;
+		} else if (option.equals("template")) {
+		    template = true;
+		} else if (option.equals("sequential")) {
+		    sequential = true;
+		} else if (option.equals("365_day_calendar")) {
+		    calendar365 = true;
+		} else {
+		    useDirect = false;
+		    throw new AnagramException
+			("OPTIONS " + option + " is not supported for " +
+			 "direct subsetting");
+		}
+	    }
+	}
+    }
+
+    /** Resolves a DSET entry the same way GrADS does: a leading '^' 
+     *  means the path is relative to the descriptor file */
+    protected File resolveDataSet(String dataSet) {
+	File descriptorDir = 
+	    gradsInfo.getDescriptorFile().getAbsoluteFile().getParentFile();
+	if (dataSet.startsWith("^")) {
+	    return new File(descriptorDir, dataSet.substring(1));
+	} else {
+	    return FileResolver.resolve(server.getHome(), dataSet);
+	}
+    }
+
     /** Creates an in-memory object for use by the direct-subsetting 
      *  feature, which reads directly from IEEE binary datafiles instead
      *  of invoking GrADS. To make this possible it is necessary to 
@@ -272,16 +343,35 @@ public class GradsGridExtracter
      *  with the number of vertical levels for each variable, so that
      *  byte offsets can be calculated properly. 
      */
-    protected void saveDimsForDirectSubset() {
+    protected void saveDimsForDirectSubset() 
+	throws AnagramException {
 	if (debug()) log.debug(this, "putting dims in GradsDataInfo: \n" +
 			       "\tx=" + xSize + ", y=" + ySize +
 			       ", z=" + zSize + ", t=" + tSize +
 			       ", e=" + eSize + "\n" +
 			       "\tvars=" + unsortedVariableList + "\n" +
 			       "\tlevs=" + unsortedLevelCountList);
-	gradsInfo.setCTL(xSize, ySize, zSize, tSize, eSize, 
-			 unsortedVariableList,
-			 unsortedLevelCountList);
+	GradsDataInfo.CTL ctl = 
+	    gradsInfo.setCTL(xSize, ySize, zSize, tSize, eSize, 
+			     unsortedVariableList,
+			     unsortedLevelCountList);
+	if (dataSet == null) {
+	    throw new AnagramException("no DSET entry in " + 
+				       gradsInfo.getDescriptorFile());
+	}
+	File dataFile = resolveDataSet(dataSet);
+	GradsTemplate fileTemplate = null;
+	if (template) {
+	    fileTemplate = 
+		new GradsTemplate(dataFile.getPath(), tSize, tStart, tStep, 
+				  calendar365, 
+				  (ensNames.size() > 0) ? ensNames : null);
+	}
+	ctl.setDataFile(dataFile, fileTemplate);
+	ctl.setBigEndian(bigEndian);
+	ctl.setHeaders(fileHeader, tHeader, xyHeader, xyTrailer, tTrailer);
+	ctl.setOptions(yRev, zRev, sequential);
+	ctl.setUndef((float)missingData);
 	if (eSize > 1) gradsInfo.setEnsemble(true);
 	if (zSize > 1) gradsInfo.setLevels(true);
 	server.getCatalog().saveCatalogToStore();
@@ -565,6 +655,22 @@ public class GradsGridExtracter
     ArrayList unsortedVariableList;
     ArrayList unsortedLevelCountList;
 
+    // file layout, for direct subsetting
+    String dataSet;
+    String tStart;
+    boolean bigEndian;
+    boolean template;
+    boolean yRev;
+    boolean zRev;
+    boolean sequential;
+    boolean calendar365;
+    long fileHeader;
+    long tHeader;
+    long xyHeader;
+    long xyTrailer;
+    long tTrailer;
+    ArrayList ensNames;
+
 
     /** Takes the parsed metadata and writes an XML fragment
      * for the THREDDS catalog  */
@@ -0,0 +1,426 @@
+/* Copyright (C) 2000-2021 by George Mason University.
+*  Authored by Joe Wielgosz and maintained by Jennifer Adams.
+*  See file COPYRIGHT for more information.
+*/
+package org.iges.grads.server;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/** Reads rows of data directly from the binary files of a classic
+ *  GrADS gridded dataset, for the direct subset mechanism. The layout
+ *  of the files is taken from the GradsDataInfo.CTL object for the
+ *  dataset, which covers byte order, headers and trailers, reversed
+ *  Y and Z axes, Fortran sequential records, and templated file
+ *  names. <p>
+ *
+ *  Values are written as big-endian floats, as required by
+ *  DODS. NaN values are written as the dataset's missing data value,
+ *  as are all values from a templated file that does not exist.
+ *  If a GradsMappedFiles cache is provided, rows are read straight
+ *  from the memory-mapped files, which are shared between requests;
+ *  otherwise, or where a row isn't covered by a mapped window, they are
+ *  read with positional reads. A reader keeps its files open until it
+ *  is closed, and may not be used by more than one thread at once.
+ */
+public class GradsGridReader {
+
+    /** Creates a reader for the dataset given.
+     * @param ctl Layout of the dataset
+     * @param sourceFile Data file to use in place of the file named in
+     * the CTL, or null
+     * @param mappings Cache of mapped files, or null to use ordinary
+     * reads
+     */
+    public GradsGridReader(GradsDataInfo.CTL ctl, 
+			   File sourceFile,
+			   GradsMappedFiles mappings) {
+	this.ctl = ctl;
+	this.mappings = mappings;
+	this.sourceFile = (sourceFile != null) ? sourceFile : ctl.dataFile;
+	this.order = (ctl.bigEndian) ?
+	    ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+	this.files = new HashMap();
+
+	long recordMarkers = (ctl.sequential) ? 2 * RECORD_MARKER_SIZE : 0;
+	this.gridBytes = ctl.xyHeader + recordMarkers +
+	    ctl.xySize * FLOAT_SIZE + ctl.xyTrailer;
+	this.tBlockBytes = ctl.tHeader +
+	    ctl.getLevelsUpTo(ctl.vars.size()) * gridBytes + ctl.tTrailer;
+    }
+
+    /** Writes the values of a variable within the ranges given to
+     *  the output stream, in the order required by DODS. Each array
+     *  is indexed by E, T, Z, Y and X. All indices are zero-based, and
+     *  refer to the order of the dimensions as seen by clients,
+     *  i.e. after any reversal. <p>
+     *
+     *  The rows of the subset are planned as a series of runs, each of
+     *  which is a single contiguous range of one file, so that a
+     *  subset covering whole grids or levels is read with a few large
+     *  reads rather than one read per row. A run may include small
+     *  gaps between rows, and rows that are in reverse order on disk.
+     */
+    public void readSubset(int varIndex,
+			   int[] start,
+			   int[] stop,
+			   int[] stride,
+			   OutputStream out)
+	throws IOException {
+
+	rowCount = 0;
+	runCount = 0;
+	int xStart = start[X];
+	int inCount = stop[X] - start[X] + 1;
+	int outCount = (inCount - 1) / stride[X] + 1;
+	for (int e = start[E]; e <= stop[E]; e += stride[E]) {
+	    for (int t = start[T]; t <= stop[T]; t += stride[T]) {
+		String fileName = getFileName(e, t);
+		for (int z = start[Z]; z <= stop[Z]; z += stride[Z]) {
+		    for (int y = start[Y]; y <= stop[Y]; y += stride[Y]) {
+			long offset = getOffset(varIndex, e, t, z, y, xStart);
+			addRow(fileName, offset, inCount, outCount, stride[X], 
+			       out);
+		    }
+		}
+	    }
+	}
+	flush(out);
+    }
+
+    /** Returns the number of rows read by the last call to
+     *  readSubset() */
+    public int getRowCount() {
+	return rowCount;
+    }
+
+    /** Returns the number of separate reads made by the last call to
+     *  readSubset() */
+    public int getRunCount() {
+	return runCount;
+    }
+
+    /** Returns the name of the file holding time t of ensemble e */
+    protected String getFileName(int e, int t) {
+	if (ctl.template != null) {
+	    return ctl.template.getFileName(e, t);
+	} else {
+	    return sourceFile.getPath();
+	}
+    }
+
+    /** Returns the position of a value in its file */
+    protected long getOffset(int varIndex, int e, int t, int z, int y, 
+			     int x) {
+	int tLocal, eLocal, tInFile;
+	if (ctl.template != null) {
+	    tLocal = t - ctl.template.getFirstStep(t);
+	    tInFile = ctl.template.getStepsInFile(t);
+	    eLocal = (ctl.template.usesEnsemble()) ? 0 : e;
+	} else {
+	    tLocal = t;
+	    tInFile = ctl.tSize;
+	    eLocal = e;
+	}
+
+	long zFile = (ctl.zRev) ? ctl.getVarLevelCount(varIndex) - 1 - z : z;
+	long yFile = (ctl.yRev) ? ctl.ySize - 1 - y : y;
+	return ctl.fileHeader +
+	    ((long)eLocal * tInFile + tLocal) * tBlockBytes +
+	    ctl.tHeader +
+	    (ctl.getLevelsUpTo(varIndex) + zFile) * gridBytes +
+	    ctl.xyHeader +
+	    ((ctl.sequential) ? RECORD_MARKER_SIZE : 0) +
+	    (yFile * ctl.xSize + x) * FLOAT_SIZE;
+    }
+
+    /** Adds a row to the current run if it is in the same file and
+     *  close enough to the rows already in the run; otherwise reads
+     *  the current run and starts a new one. */
+    protected void addRow(String fileName, 
+			  long offset, 
+			  int inCount,
+			  int outCount,
+			  int xStride,
+			  OutputStream out)
+	throws IOException {
+
+	long rowEnd = offset + (long)inCount * FLOAT_SIZE;
+	if (runRows > 0) {
+	    long newStart = Math.min(runStart, offset);
+	    long newEnd = Math.max(runEnd, rowEnd);
+	    long gap = Math.max(offset - runEnd, runStart - rowEnd);
+	    if (!fileName.equals(runFile) || 
+		gap > MAX_GAP ||
+		newEnd - newStart > MAX_RUN) {
+		flush(out);
+	    } else {
+		runStart = newStart;
+		runEnd = newEnd;
+	    }
+	}
+	if (runRows == 0) {
+	    runFile = fileName;
+	    runStart = offset;
+	    runEnd = rowEnd;
+	    runInCount = inCount;
+	    runOutCount = outCount;
+	    runStride = xStride;
+	}
+	if (runRows == runOffsets.length) {
+	    long[] newOffsets = new long[runOffsets.length * 2];
+	    System.arraycopy(runOffsets, 0, newOffsets, 0, runRows);
+	    runOffsets = newOffsets;
+	}
+	runOffsets[runRows++] = offset;
+    }
+
+    /** Reads the current run, and writes the values in its rows to
+     *  the output stream */
+    protected void flush(OutputStream out) 
+	throws IOException {
+
+	if (runRows == 0) {
+	    return;
+	}
+	int runBytes = (int)(runEnd - runStart);
+	int outBytes = runRows * runOutCount * FLOAT_SIZE;
+	if (outBuffer == null || outBuffer.length < outBytes) {
+	    outBuffer = new byte[outBytes];
+	}
+	rowCount += runRows;
+	runCount++;
+
+	ByteBuffer in = null;
+	int pos = 0;
+	if (mappings != null) {
+	    in = getMapped(runFile, runStart, runBytes);
+	}
+	if (in != null) {
+	    try {
+		pos = convert(in);
+	    } catch (InternalError ie) {
+		// the file was truncated or rewritten after it was
+		// mapped, so the JVM got a fault reading the mapping;
+		// nothing has been written yet, so read the run again
+		dropMapped(runFile);
+		in = null;
+	    }
+	}
+	if (in == null) {
+	    RandomAccessFile file = getFile(runFile);
+	    if (file == null) {
+		fillUndef(runRows * runOutCount, out);
+		runRows = 0;
+		return;
+	    }
+	    if (inBuffer == null || inBuffer.length < runBytes) {
+		inBuffer = new byte[runBytes];
+	    }
+	    file.seek(runStart);
+	    file.readFully(inBuffer, 0, runBytes);
+	    in = ByteBuffer.wrap(inBuffer, 0, runBytes);
+	    pos = convert(in);
+	}
+	out.write(outBuffer, 0, pos);
+	runRows = 0;
+    }
+
+    /** Converts the rows of the current run from the buffer given
+     *  into outBuffer.
+     * @return The number of bytes placed in outBuffer
+     */
+    protected int convert(ByteBuffer in) {
+	in.order(order);
+	int base = in.position();
+
+	ByteBuffer result = ByteBuffer.wrap(outBuffer);
+	int pos = 0;
+	if (runStride == 1 && order == ByteOrder.BIG_ENDIAN) {
+	    // already in the right form; copy the rows in bulk and only
+	    // patch any NaNs
+	    int rowBytes = runInCount * FLOAT_SIZE;
+	    for (int r = 0; r < runRows; r++) {
+		in.position(base + (int)(runOffsets[r] - runStart));
+		in.get(outBuffer, pos, rowBytes);
+		pos += rowBytes;
+	    }
+	    for (int i = 0; i < pos; i += FLOAT_SIZE) {
+		if (Float.isNaN(result.getFloat(i))) {
+		    result.putFloat(i, ctl.undef);
+		}
+	    }
+	} else if (runStride == 1) {
+	    // swap whole rows through int views, which the JVM can do
+	    // much faster than decoding one float at a time
+	    int rowBytes = runInCount * FLOAT_SIZE;
+	    if (swapBuffer == null || swapBuffer.length < runInCount) {
+		swapBuffer = new int[runInCount];
+	    }
+	    IntBuffer result32 = result.asIntBuffer();
+	    int undefBits = Float.floatToIntBits(ctl.undef);
+	    for (int r = 0; r < runRows; r++) {
+		in.position(base + (int)(runOffsets[r] - runStart));
+		in.slice().order(order).asIntBuffer().get(swapBuffer, 0, 
+							 runInCount);
+		for (int i = 0; i < runInCount; i++) {
+		    if ((swapBuffer[i] & 0x7fffffff) > 0x7f800000) {
+			swapBuffer[i] = undefBits;
+		    }
+		}
+		result32.put(swapBuffer, 0, runInCount);
+	    }
+	    pos = runRows * rowBytes;
+	} else {
+	    int step = runStride * FLOAT_SIZE;
+	    for (int r = 0; r < runRows; r++) {
+		int rowBase = base + (int)(runOffsets[r] - runStart);
+		for (int i = 0; i < runOutCount; i++) {
+		    float value = in.getFloat(rowBase + i * step);
+		    if (Float.isNaN(value)) {
+			value = ctl.undef;
+		    }
+		    result.putFloat(pos, value);
+		    pos += FLOAT_SIZE;
+		}
+	    }
+	}
+	return pos;
+    }
+
+    /** Returns a mapped buffer covering the range given, or null if
+     *  the range isn't covered by a mapped window */
+    protected ByteBuffer getMapped(String fileName, long offset, int count)
+	throws IOException {
+
+	Object mapped = mapped(fileName);
+	if (mapped == MISSING) {
+	    return null;
+	}
+	return ((GradsMappedFiles.MappedFile)mapped).get(offset, count);
+    }
+
+    /** Looks up the mapping for a file once per reader, so that the
+     *  file is only checked for changes once per request */
+    protected Object mapped(String fileName) {
+	if (mappedFiles == null) {
+	    mappedFiles = new HashMap();
+	}
+	Object mapped = mappedFiles.get(fileName);
+	if (mapped == null) {
+	    mapped = mappings.get(new File(fileName));
+	    if (mapped == null) {
+		mapped = MISSING;
+	    }
+	    mappedFiles.put(fileName, mapped);
+	}
+	return mapped;
+    }
+
+    /** Stops using the mapping for a file that could not be read
+     *  through it, for this reader and for later requests */
+    protected void dropMapped(String fileName) {
+	Object mapped = mapped(fileName);
+	if (mapped != MISSING) {
+	    mappings.drop((GradsMappedFiles.MappedFile)mapped);
+	}
+	mappedFiles.put(fileName, MISSING);
+    }
+
+    /** Closes all files opened by this reader */
+    public void close() {
+	Iterator it = files.values().iterator();
+	while (it.hasNext()) {
+	    Object file = it.next();
+	    if (file instanceof RandomAccessFile) {
+		try {
+		    ((RandomAccessFile)file).close();
+		} catch (IOException ioe) {}
+	    }
+	}
+	files.clear();
+    }
+
+    /** Returns the open file with the name given, or null if it does
+     *  not exist. Missing files are an error unless the dataset is
+     *  templated, since GrADS treats missing template files as
+     *  missing data. */
+    protected RandomAccessFile getFile(String fileName)
+	throws IOException {
+
+	Object file = files.get(fileName);
+	if (file == null) {
+	    try {
+		file = new RandomAccessFile(fileName, "r");
+	    } catch (FileNotFoundException fnfe) {
+		if (ctl.template == null) {
+		    throw fnfe;
+		}
+		file = MISSING;
+	    }
+	    files.put(fileName, file);
+	}
+	return (file == MISSING) ? null : (RandomAccessFile)file;
+    }
+
+    protected void fillUndef(int count, OutputStream out)
+	throws IOException {
+
+	if (outBuffer == null || outBuffer.length < count * FLOAT_SIZE) {
+	    outBuffer = new byte[count * FLOAT_SIZE];
+	}
+	ByteBuffer result = ByteBuffer.wrap(outBuffer);
+	for (int i = 0; i < count; i++) {
+	    result.putFloat(i * FLOAT_SIZE, ctl.undef);
+	}
+	out.write(outBuffer, 0, count * FLOAT_SIZE);
+    }
+
+    /** Indices of the dimensions in the arguments to readSubset() */
+    public static final int E = 0;
+    public static final int T = 1;
+    public static final int Z = 2;
+    public static final int Y = 3;
+    public static final int X = 4;
+
+    protected static final int FLOAT_SIZE = 4;
+
+    /** Largest range of a file that is read at once */
+    protected static final int MAX_RUN = 4 * 1024 * 1024;
+
+    /** Largest amount of unneeded data that is read in order to
+     *  combine two rows into a single run */
+    protected static final int MAX_GAP = 64 * 1024;
+
+    /** Size of the length fields around a Fortran unformatted record */
+    protected static final int RECORD_MARKER_SIZE = 4;
+
+    /** Marks a templated file that doesn't exist */
+    protected static final Object MISSING = new Object();
+
+    protected GradsDataInfo.CTL ctl;
+    protected File sourceFile;
+    protected ByteOrder order;
+    protected long gridBytes;
+    protected long tBlockBytes;
+    protected Map files;
+    protected GradsMappedFiles mappings;
+    protected Map mappedFiles;
+    protected byte[] inBuffer;
+    protected byte[] outBuffer;
+    protected int[] swapBuffer;
+
+    protected String runFile;
+    protected long runStart;
+    protected long runEnd;
+    protected int runInCount;
+    protected int runOutCount;
+    protected int runStride;
+    protected long[] runOffsets = new long[64];
+    protected int runRows;
+
+    protected int rowCount;
+    protected int runCount;
+
+}
@@ -6,12 +6,18 @@ package org.iges.grads.server;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import dods.dap.*;
 import dods.dap.Server.*;
 
+import org.iges.util.AsciiOutputStream;
 import org.iges.util.Bounds;
+import org.iges.util.DeflatedFile;
+import org.iges.util.ParallelDeflaterOutputStream;
 import org.iges.util.Range;
+import org.iges.util.RangeOutputStream;
+import org.iges.util.SliceInputStream;
 
 import org.iges.util.Spooler;
 
@@ -26,15 +32,121 @@ public class GradsGridSubsetter
 		    CEEvaluator ce, 
 		    long subsetLimit, 
 		    boolean useASCII, 
+		    Privilege privilege,
 		    OutputStream out) 
      throws ModuleException {
 
-     // create a flat list of variables to be subsetted, 
-     // by parsing through the nested DDS structure
+	if (debug()) log.debug(this, "serializing variables for " + data);
+	List arrays = getArrays(ce);
+
+	// if only part of the response is wanted, variables outside
+	// the range are skipped, and no subsets are generated for them
+	RangeOutputStream range = null;
+	Set skipped = new HashSet();
+	if (!useASCII && out instanceof RangeOutputStream) {
+	    range = (RangeOutputStream)out;
+	    long position = range.getPosition();
+	    Iterator it = arrays.iterator();
+	    while (it.hasNext()) {
+		SDArray var = (SDArray)it.next();
+		if (!var.isProject()) {
+		    continue;
+		}
+		long length = getBinaryLength(var);
+		if (!range.overlaps(position, length)) {
+		    skipped.add(var);
+		}
+		position += length;
+	    }
+	}
+	List sent = new ArrayList(arrays);
+	sent.removeAll(skipped);
+
+	// iterate through variable list and serialize each one
+	DataMethods dataMethods = new DataMethods(data, privilege);
+
+	// start generating the subsets for the later variables, so
+	// that GrADS works on them while the earlier ones are streamed
+	Prefetcher prefetcher = 
+	    new Prefetcher(dataMethods, sent, useASCII, privilege);
+
+	try {
+	    Iterator it = arrays.iterator();
+	    while (it.hasNext()) {
+		SDArray var = (SDArray)it.next();
+		if (!var.isProject()) {
+		    continue;
+		}
+		if (skipped.contains(var)) {
+		    if (debug()) debug("skipping " + var.getName() + 
+				       ", which is outside the range");
+		    try {
+			range.skip(getBinaryLength(var));
+		    } catch (IOException ioe) {
+			throw new ModuleException(this, "io error during " +
+						  "data send: " + 
+						  ioe.getMessage());
+		    }
+		    continue;
+		}
+		if (debug()) debug("serializing " + var.getName());
+		prefetcher.claim(var.getName());
+		Serializer serializer = new Serializer(var,
+						       out,
+						       useASCII,
+						       dataMethods,
+						       subsetLimit);
+		prefetcher.release(var.getName());
+		serializer.serialize();
+	    }
+	} finally {
+	    prefetcher.close();
+	}
+    }
+
+    /** Calculates the number of bytes subset() writes in binary
+     *  format for the variables projected by a constraint, not
+     *  counting the DDS that comes before them. */
+    public long getBinaryLength(CEEvaluator ce) 
+	throws ModuleException {
+
+	long length = 0;
+	Iterator it = getArrays(ce).iterator();
+	while (it.hasNext()) {
+	    SDArray var = (SDArray)it.next();
+	    if (var.isProject()) {
+		length += getBinaryLength(var);
+	    }
+	}
+	return length;
+    }
+
+    /** Calculates the number of bytes written for a single
+     *  variable: the two XDR length words followed by the values. */
+    protected long getBinaryLength(DArray var)
+	throws ModuleException {
+
+	long count = 1;
+	for (int i = 0; i < var.numDimensions(); i++) {
+	    try {
+		DArrayDimension dim = var.getDimension(i);
+		count *= (dim.getStop() - dim.getStart()) / dim.getStride() + 1;
+	    } catch (InvalidParameterException ipe) {
+		throw new ModuleException(this, "couldn't look up dimension", 
+					  ipe);
+	    }
+	}
+	int valueSize = (var.numDimensions() > 1) ? 
+	    Serializer.FLOAT_SIZE : Serializer.DOUBLE_SIZE;
+	return 2 * Serializer.INT_SIZE + count * valueSize;
+    }
+
+    /** Creates a flat list of variables to be subsetted, by parsing
+     *  through the nested DDS structure */
+    protected List getArrays(CEEvaluator ce) {
 	ServerDDS dds = ce.getDDS();
 	Enumeration e = dds.getVariables();
 	List arrays = new ArrayList();
-	if (debug()) log.debug(this, "serializing variables for " + data);
 	while(e.hasMoreElements()){
 	    BaseType var = (BaseType)e.nextElement();
 	    if (var instanceof DArray) {
@@ -46,36 +158,184 @@ public class GradsGridSubsetter
 		}
 	    }
 	}
+	return arrays;
+    }
+    
+    /** Generates the subsets for the variables of a request on
+     *  background threads, in the order in which they will be
+     *  streamed. The number of threads is one less than the GrADS
+     *  task slots available to the client, since the request's own
+     *  thread also generates a subset whenever it reaches a variable
+     *  that hasn't been started yet. The threads come from a pool
+     *  shared by all requests (see getPrefetchPool()); if it is busy,
+     *  fewer subsets, or none, are generated in advance. <p>
+     *
+     *  Prefetched subsets are obtained through
+     *  DataMethods.getSubset(), so the Serializer for a variable
+     *  simply shares the subset file, waiting for it to be finished
+     *  if necessary. If a prefetch fails, the Serializer tries again
+     *  and reports the error.
+     */
+    protected class Prefetcher {
+
+	protected Prefetcher(DataMethods data,
+			     List arrays,
+			     boolean useASCII,
+			     Privilege privilege) {
+	    this.data = data;
+	    this.pending = new LinkedList();
+	    this.prefetches = new HashMap();
+
+	    // direct subsets don't involve GrADS at all
+	    if (data.info.isDirectSubset() && !useASCII && 
+		data.info.getCTL() != null) {
+		return;
+	    }
+
+	    Iterator it = arrays.iterator();
+	    boolean first = true;
+	    while (it.hasNext()) {
+		SDArray var = (SDArray)it.next();
+		if (!var.isProject() || var.numDimensions() <= 1) {
+		    continue;
+		}
+		if (first) {
+		    // the request's own thread starts on this right away
+		    first = false;
+		    continue;
+		}
+		Prefetch prefetch = new Prefetch();
+		prefetch.name = var.getName();
+		prefetch.bounds = ((GradsArray)var).calculateBounds();
+		pending.add(prefetch);
+		prefetches.put(prefetch.name, prefetch);
+	    }
+
+	    int slots = 0;
+	    if (privilege != null) {
+		slots = (int)privilege.getNumAttribute("dods_task_slots", 0);
+	    }
+	    if (slots <= 0) {
+		slots = tool.getTask().getQueue().getMaxTasks();
+	    }
+	    int threads = Math.min(slots - 1, pending.size());
+	    ThreadPoolExecutor pool = getPrefetchPool();
+	    int started = 0;
+	    while (pool != null && started < threads) {
+		try {
+		    pool.execute(new Runnable() {
+			    public void run() {
+				prefetch();
+			    }
+			});
+		    started++;
+		} catch (RejectedExecutionException ree) {
+		    // the pool is busy with other requests, so the
+		    // request's own thread generates the rest
+		    break;
+		}
+	    }
+	    if (started > 0 && debug()) {
+		debug("generating " + pending.size() + 
+		      " subsets on " + started + " threads");
+	    }
+	}
 
-	// iterate through variable list and serialize each one
-	DataMethods dataMethods = new DataMethods(data);
+	/** Prevents the subset for a variable from being started in
+	 *  the background, because the request's own thread is about
+	 *  to obtain it */
+	protected synchronized void claim(String name) {
+	    Prefetch prefetch = (Prefetch)prefetches.get(name);
+	    if (prefetch != null) {
+		pending.remove(prefetch);
+	    }
+	}
 
-	Iterator it = arrays.iterator();
-	while (it.hasNext()) {
-	    SDArray var = (SDArray)it.next();
-	    if (!var.isProject()) {
-		continue;
+	/** Gives up the prefetcher's reference to the subset for a
+	 *  variable, once the request's own thread has one */
+	protected synchronized void release(String name) {
+	    Prefetch prefetch = (Prefetch)prefetches.get(name);
+	    if (prefetch != null) {
+		release(prefetch);
 	    }
-	    if (debug()) debug("serializing " + var.getName());
-	    Serializer serializer = new Serializer(var,
-						   out,
-						   useASCII,
-						   dataMethods,
-						   subsetLimit);
-	    serializer.serialize();
 	}
-	
-	
+
+	/** Stops starting new subsets, and releases those that have
+	 *  been generated but not used */
+	protected synchronized void close() {
+	    pending.clear();
+	    Iterator it = prefetches.values().iterator();
+	    while (it.hasNext()) {
+		release((Prefetch)it.next());
+	    }
+	}
+
+	protected void release(Prefetch prefetch) {
+	    prefetch.released = true;
+	    if (prefetch.subset != null) {
+		data.releaseSubset(prefetch.subset);
+		prefetch.subset = null;
+	    }
+	}
+
+	/** Runs on each background thread, generating subsets until
+	 *  there are none left */
+	protected void prefetch() {
+	    while (true) {
+		Prefetch prefetch;
+		synchronized (this) {
+		    if (pending.isEmpty()) {
+			return;
+		    }
+		    prefetch = (Prefetch)pending.removeFirst();
+		}
+
+		GradsSubsetCache.SharedSubset subset = null;
+		try {
+		    subset = data.getSubset(prefetch.name, prefetch.bounds);
+		} catch (ModuleException me) {
+		    if (debug()) debug("prefetch of " + prefetch.name + 
+				       " failed: " + me.getMessage());
+		} catch (RuntimeException re) {
+		    if (debug()) debug("prefetch of " + prefetch.name + 
+				       " failed: " + re);
+		}
+
+		synchronized (this) {
+		    if (subset != null) {
+			if (prefetch.released) {
+			    data.releaseSubset(subset);
+			} else {
+			    prefetch.subset = subset;
+			}
+		    }
+		}
+	    }
+	}
+
+	protected DataMethods data;
+	protected LinkedList pending;
+	protected Map prefetches;
     }
-    
+
+    /** A subset being generated ahead of time */
+    protected static class Prefetch {
+	protected String name;
+	protected Bounds.Grid bounds;
+	protected GradsSubsetCache.SharedSubset subset;
+	/** Set once the subset is no longer needed by the prefetcher */
+	protected boolean released;
+    }
+
     /** This is a wrapper class for a DataHandle, which implements
      * operations that are dependent on configuration settings
      * specific to the subset module, e.g., buffer size.  
      */
     public class DataMethods {
 
-	private DataMethods(DataHandle data) {
+	private DataMethods(DataHandle data, Privilege privilege) {
 	    this.data = data;
+	    this.privilege = privilege;
 	    this.info = (GradsDataInfo)data.getToolInfo();
 	}
 
@@ -108,28 +368,185 @@ public class GradsGridSubsetter
 	    return dimFile;
 	}
 
+	/** Obtains a disk file containing a subset of the dataset
+	 *  specified by the variable and bounds given. If an identical
+	 *  subset of the same version of the dataset is already being 
+	 *  generated or streamed by another request, the same file is
+	 *  shared, so that only one GrADS process is run for any number
+	 *  of concurrent requests; the file may also be kept in the
+	 *  subset cache from an earlier request. The subset must be 
+	 *  passed to releaseSubset() when the caller is finished with it.
+	 */
+	public GradsSubsetCache.SharedSubset getSubset(String variable, 
+						       Bounds.Grid bounds) 
+	    throws ModuleException {
+	    return getSubset(variable, bounds, false);
+	}
+
+	/** Obtains a subset as above. 
+	 * @param stream If true, the subset may be returned while GrADS
+	 * is still writing it, in which case its file must be read
+	 * with GradsSubsetCache.open(). Use awaitSubset() to wait for
+	 * the file to be complete.
+	 */
+	public GradsSubsetCache.SharedSubset getSubset(final String variable, 
+						       Bounds.Grid bounds,
+						       boolean stream) 
+	    throws ModuleException {
+
+	    String version = data.getCompleteName() + " " + 
+		data.getCreateTime() + " " + 
+		variable;
+
+	    GradsSubsetCache.SharedSubset subset = 
+		cache.acquire(data.getCompleteName(), version, bounds,
+			      widen(bounds));
+	    Bounds.Grid subsetBounds = subset.getBounds();
+	    if (cache.claim(subset)) {
+		if (stream && 
+		    subsetBounds.xStride == 1 && subsetBounds.yStride == 1) {
+		    // GrADS writes straight into the file that is
+		    // streamed, so it is run on a thread of its own
+		    final File file = createSubsetFile(variable);
+		    final GradsSubsetCache.SharedSubset started = subset;
+		    cache.started(subset, file);
+		    // the thread holds a reference of its own, so that the
+		    // file is not deleted until GrADS has finished with it,
+		    // even if the dataset is invalidated and every request
+		    // reading the subset has released it
+		    cache.retain(subset);
+		    Thread thread = new Thread("subset-generate") {
+			    public void run() {
+				try {
+				    generate(started, variable, file);
+				} finally {
+				    cache.release(started);
+				}
+			    }
+			};
+		    thread.setDaemon(true);
+		    thread.start();
+		} else {
+		    generate(subset, variable, null);
+		}
+	    } else {
+		if (debug()) debug("sharing subset " + version + " " + 
+				   subsetBounds + " for " + bounds);
+		if (stream) {
+		    cache.waitForStart(subset);
+		} else {
+		    cache.waitFor(subset);
+		}
+	    }
+
+	    if (cache.isDone(subset) && subset.error != null) {
+		releaseSubset(subset);
+		throw subset.error;
+	    }
+	    return subset;
+	}
+
+	/** Waits until a subset obtained with getSubset() has been
+	 *  completely written. If generation failed, the subset is
+	 *  released and the error is thrown. */
+	public void awaitSubset(GradsSubsetCache.SharedSubset subset) 
+	    throws ModuleException {
+
+	    cache.waitFor(subset);
+	    if (subset.error != null) {
+		releaseSubset(subset);
+		throw subset.error;
+	    }
+	}
+
+	/** Generates a subset and records the outcome in the cache.
+	 * @param file File for GrADS to write to, or null to create one
+	 */
+	protected void generate(GradsSubsetCache.SharedSubset subset,
+				String variable,
+				File file) {
+	    ModuleException error = null;
+	    try {
+		if (file == null) {
+		    file = createSubsetFile(variable);
+		}
+		file = generateSubset(variable, subset.getBounds(), file);
+	    } catch (ModuleException me) {
+		error = me;
+	    } catch (RuntimeException re) {
+		error = new ModuleException
+		    (GradsGridSubsetter.this, "subset operation failed", re);
+	    }
+	    cache.finished(subset, file, error);
+	}
+
+	/** Returns the bounds to generate for a new subset. If the
+	 *  subset_tile setting is set, the X and Y ranges are widened
+	 *  to whole tiles of that many grid points, so that later
+	 *  requests for nearby boxes can be sliced out of the same
+	 *  subset. Ranges of a single point are left alone, since
+	 *  widening those would multiply the size of the subset, and so
+	 *  are requests with strides, which are generated already
+	 *  thinned out. */
+	protected Bounds.Grid widen(Bounds.Grid bounds) 
+	    throws ModuleException {
+
+	    if (tileSize <= 0 || bounds.hasStrides() ||
+		(bounds.x.size() == 1 && bounds.y.size() == 1)) {
+		return bounds;
+	    }
+	    Range.Long x = bounds.x;
+	    if (x.size() > 1) {
+		x = widen(x, getDimData("lon").length() / 
+			  Serializer.DOUBLE_SIZE);
+	    }
+	    Range.Long y = bounds.y;
+	    if (y.size() > 1) {
+		y = widen(y, getDimData("lat").length() / 
+			  Serializer.DOUBLE_SIZE);
+	    }
+	    return new Bounds.Grid(x, y, bounds.z, bounds.t, bounds.e);
+	}
+
+	protected Range.Long widen(Range.Long range, long size) {
+	    long min = (range.min / tileSize) * tileSize;
+	    long max = (range.max / tileSize + 1) * tileSize - 1;
+	    return new Range.Long(min, Math.max(range.max, 
+						Math.min(max, size - 1)));
+	}
+
+	/** Indicates that the caller has finished reading a subset 
+	 *  obtained from getSubset(). The file is deleted once the
+	 *  last reader releases it, unless it is kept in the subset
+	 *  cache. */
+	public void releaseSubset(GradsSubsetCache.SharedSubset subset) {
+	    cache.release(subset);
+	}
+
 	/** Generates a disk file containing a subset of the dataset
 	 *   specified by the variable and bounds given, to be streamed by
-	 *   GradsArray.
+	 *   GradsArray. The file contains only the points selected by
+	 *   the strides: the subset script skips levels, times and
+	 *   ensemble members itself, and the file it writes is then
+	 *   thinned out in X and Y if necessary.
 	 * @see org.iges.grads.server.dap.GradsArray
 	 */
-	public File getSubset(String variable, 
-			      Bounds.Grid bounds) 
+	protected File generateSubset(String variable, 
+				      Bounds.Grid bounds,
+				      File subsetFile) 
 	    throws ModuleException {
 
-	    File subsetFile = server.getStore().get(GradsGridSubsetter.this,
-						    info.getDODSName() + 
-						    "." + variable,
-						    ".subset");
-
 	    GradsDataInfo info = (GradsDataInfo)data.getToolInfo();
 	    Task task = tool.getTask().task(info.getGradsBinaryType(),
 					    "subset", new String[] {
 						subsetFile.getAbsolutePath(),
 						info.getGradsArgument(),
 						variable,
-						bounds.toGradsString()
-					    });
+						bounds.toGradsString(),
+						bounds.zStride + " " +
+						bounds.tStride + " " +
+						bounds.eStride
+					    }, privilege);
 	    
 	    try {
 		task.run();
@@ -148,9 +565,62 @@ public class GradsGridSubsetter
 		     variable + " in " + data);
 	    }
 
+	    if (bounds.xStride > 1 || bounds.yStride > 1) {
+		subsetFile = thin(subsetFile, variable, bounds);
+	    }
 	    return subsetFile;
 	}
 
+	/** Creates a new, empty file for a subset of the variable given */
+	protected File createSubsetFile(String variable) 
+	    throws ModuleException {
+	    return server.getStore().get(GradsGridSubsetter.this,
+					 info.getDODSName() + 
+					 "." + variable,
+					 ".subset");
+	}
+
+	/** Copies the points selected by the X and Y strides from a
+	 *  file written by the subset script to a new file, and deletes
+	 *  the original. */
+	protected File thin(File gradsFile, 
+			    String variable, 
+			    Bounds.Grid bounds) 
+	    throws ModuleException {
+
+	    Bounds.Grid written = new Bounds.Grid(bounds.x, bounds.y, 
+						  bounds.z, bounds.t, 
+						  bounds.e);
+	    written.setStrides(1, 1, bounds.zStride, bounds.tStride, 
+			       bounds.eStride);
+
+	    File thinFile = createSubsetFile(variable);
+	    InputStream in = null;
+	    OutputStream out = null;
+	    try {
+		in = new SliceInputStream(gradsFile, written, bounds, 
+					  Serializer.FLOAT_SIZE);
+		out = new BufferedOutputStream(new FileOutputStream(thinFile),
+					       bufferSize);
+		Spooler.spool(in, out, new byte[bufferSize]);
+	    } catch (IOException ioe) {
+		thinFile.delete();
+		throw new ModuleException(GradsGridSubsetter.this,
+					  "io error thinning subset", ioe);
+	    } finally {
+		try {
+		    if (in != null) {
+			in.close();
+		    }
+		    if (out != null) {
+			out.close();
+		    }
+		} catch (IOException ioe) {}
+		gradsFile.delete();
+	    }
+	    return thinFile;
+	}
+
 	/** Returns the size of the in-memory buffer to be used when
 	 * streaming subsets from disk. */
 	public int getBufferSize() {
@@ -159,6 +629,7 @@ public class GradsGridSubsetter
 
 	protected GradsDataInfo info;
 	protected DataHandle data;
+	protected Privilege privilege;
 
     }
 
@@ -187,9 +658,14 @@ public class GradsGridSubsetter
 	    this.name = var.getName();
 
 	    if (sendASCII) {
-		this.p = new PrintStream(out);
+		this.p = new AsciiOutputStream(out, bufferSize);
 	    } else {
 		this.out = new DataOutputStream(out);
+		if (out instanceof ParallelDeflaterOutputStream) {
+		    this.compressor = (ParallelDeflaterOutputStream)out;
+		} else if (out instanceof RangeOutputStream) {
+		    this.range = (RangeOutputStream)out;
+		}
 	    }
 
 	    // check if we are serializing coordinate or data variable
@@ -210,6 +686,7 @@ public class GradsGridSubsetter
 
 	    if (limit > 0 && 
 		(totalOutputSize * valueSize) > limit) {
+		close();
 		throw new ModuleException(GradsGridSubsetter.this,
 					  "subset exceeds limit of " + 
 					  limit + " bytes");
@@ -253,27 +730,52 @@ public class GradsGridSubsetter
 	protected void openSubsetInput(DArray var, DataMethods data) 
 	    throws ModuleException {
 
+	    // data variable. direct subsets are read by writeDirectSubset(),
+	    // and only in binary form
+	    if (data.info.isDirectSubset() && !sendASCII && 
+		data.info.getCTL() != null) {
+		if (debug()) debug("reading " + data.info.getDescriptorFile() + 
+				   " data files for direct subsetting");
+		this.direct = true;
+		return;
+	    }
+
 	    try {
-		// data variable
-		if (data.info.isDirectSubset()) {
-		    if (debug()) debug("opening " + 
-				       data.info.getSourceFile() + 
-				       " for direct subsetting");
-			this.inputFile = data.info.getSourceFile();
-		} else {
-		    Bounds.Grid bounds = 
-			((GradsArray)var).calculateBounds();
-		    this.inputFile = 
-			data.getSubset(var.getName(), bounds);
+		Bounds.Grid bounds = 
+		    ((GradsArray)var).calculateBounds();
+		GradsSubsetCache.SharedSubset shared = 
+		    data.getSubset(var.getName(), bounds, streamSubsets);
+		boolean slice = !shared.getBounds().equals(bounds);
+		this.sliced = slice;
+		if (slice) {
+		    // slices can only be read from a complete file
+		    data.awaitSubset(shared);
 		}
+		this.subset = shared;
+		this.inputFile = subset.getFile();
+		this.prestrided = true;
 		
+		InputStream subsetStream;
+		if (!slice && !cache.isDone(subset)) {
+		    if (debug()) debug("streaming subset as it is written");
+		    subsetStream = cache.open(subset);
+		} else if (!slice) {
+		    subsetStream = new FileInputStream(inputFile);
+		} else {
+		    // answered from a larger subset
+		    if (debug()) debug("slicing " + bounds + " from " + 
+				       subset.getBounds());
+		    subsetStream = new SliceInputStream(inputFile,
+							subset.getBounds(),
+							bounds,
+							FLOAT_SIZE);
+		}
 		this.in = new DataInputStream
 		    (new BufferedInputStream
-		     (new FileInputStream
-		      (inputFile)));
+		     (subsetStream));
 		
 	    } catch (IOException ioe) {
-		    inputFile.delete();
+		    close();
 		    throw new ModuleException
 			(GradsGridSubsetter.this,
 			 "io error opening subset data", ioe);
@@ -298,6 +800,11 @@ public class GradsGridSubsetter
 			rowSize = dims[i+1].rowSize * dims[i+1].inputSize;
 		    }
 		    dims[i] = new Dim(dodsDim, rowSize);
+		    if (prestrided) {
+			// the input holds only the points to be sent
+			dims[i].stride = 1;
+			dims[i].inputSize = dims[i].outputSize;
+		    }
 		    totalInputSize *= dims[i].inputSize;
 		    totalOutputSize *= dims[i].outputSize;
 		} catch (InvalidParameterException ipe) {
@@ -316,12 +823,26 @@ public class GradsGridSubsetter
 	    try {
 		writeHeader();	    
 
-		if (!sendASCII && isSubset && data.info.isDirectSubset()) {
+		if (direct) {
 		    // special handler to extract the subset 
 		    // directly from the datafile, with no intermediate
 		    // temporary file
 		    writeDirectSubset();
 
+		} else if (!sendASCII && totalInputSize == totalOutputSize &&
+			   canSendDeflated()) {
+		    // the response is being compressed, and the subset
+		    // file holds exactly the data to send, so its
+		    // compressed copy can be sent as it is
+		    if (debug()) debug("sending compressed copy of subset");
+		    DeflatedFile deflated = 
+			cache.getDeflated(subset, compressor.getLevel());
+		    try {
+			compressor.writeDeflated(deflated);
+		    } finally {
+			deflated.close();
+		    }
+
 		} else if (!sendASCII && totalInputSize == totalOutputSize) {
 		    // the absolute simplest case - binary data, no 
 		    // subsampling, subset already extracted from dataset
@@ -330,17 +851,28 @@ public class GradsGridSubsetter
 		    byte[] buffer = new byte[bufferSize];
 
 		    if (debug()) debug("spooling directly");
-		    Spooler.spool(totalOutputSize * valueSize, 
-				  in, 
-				  out, 
-				  buffer);
+		    long length = (long)totalOutputSize * valueSize;
+		    if (range == null) {
+			Spooler.spool(length, in, out, buffer);
+		    } else {
+			// only the part of the file in the range is read
+			long before = Math.min(range.getBytesBefore(), length);
+			long send = Math.min(range.getBytesLeft(), 
+					     length - before);
+			Spooler.skipFully(in, before);
+			range.skip(before);
+			Spooler.spool(send, in, out, buffer);
+			range.skip(length - before - send);
+		    }
 		} else {
 		    // in all other cases, data has to be parsed as it's 
 		    // read in, and formatted or subsampled data written to 
 		    // the output stream 
 		    writeProjectedArray(0);
 		}
-		in.close();
+		if (sendASCII) {
+		    p.flushBuffer();
+		}
 
 	    } catch (IOException ioe) {
 		throw new ModuleException(GradsGridSubsetter.this,
@@ -348,10 +880,33 @@ public class GradsGridSubsetter
 					  ioe.getClass() + ": " + 
 					  ioe.getMessage());
 	    } finally {
-		// clean up temporary subset file
-		if (isSubset && !data.info.isDirectSubset()) {
-		    inputFile.delete();
-		}
+		close();
+	    }
+	}
+
+	/** Returns true if the output is being compressed, and the
+	 *  data to send is a complete subset file that GrADS has
+	 *  finished writing */
+	protected boolean canSendDeflated() {
+	    return compressor != null && 
+		subset != null && 
+		!sliced &&
+		cache.isDone(subset) &&
+		inputFile.length() == (long)totalOutputSize * valueSize;
+	}
+
+	/** Closes the input, and releases the temporary subset file
+	 *  if there is one */
+	protected void close() {
+	    if (in != null) {
+		try {
+		    in.close();
+		} catch (IOException ioe) {}
+		in = null;
+	    }
+	    if (subset != null) {
+		data.releaseSubset(subset);
+		subset = null;
 	    }
 	}
 
@@ -398,14 +953,21 @@ public class GradsGridSubsetter
 		p.print(", ");
 	    }
 
-	    // Loop on output values
-	    for (dim.pos = 0; dim.pos < dim.outputSize; dim.pos++) {
-		// Recurse unless this is the last dimension
-		if (i == dims.length - 1) {
-		    writeValue(dim);
+	    // Rows of the last dimension are read in bulk rather than
+	    // value by value
+	    if (i == dims.length - 1) {
+		if (sendASCII) {
+		    writeAsciiRow(dim);
+		    p.println();
 		} else {
-		    writeProjectedArray(i + 1);
+		    writeBinaryRow(dim);
 		}
+		return;
+	    }
+
+	    // Loop on output values
+	    for (dim.pos = 0; dim.pos < dim.outputSize; dim.pos++) {
+		writeProjectedArray(i + 1);
 
 		// Number of data values to skip (could I just calculate this once in 
 		// the beginning?)
@@ -437,180 +999,152 @@ public class GradsGridSubsetter
 	    }
 	}
 
-	/** Writes a subset in binary format, directly the original
-	 *  datafile.  This avoids the need to invoke GrADS and create
-	 *  a temporary subset file, which markedly improves
-	 *  performance. However, the datafile must fit a very
-	 *  specific set of characterisitics (see documentation for
-	 *  'direct_subset' in the &lt;dataset&gt; tag). A lot of 
-	 * helper functions in the GradsDataInfo.CTL object are used.
-	 * @see org.iges.grads.server.GradsDataInfo.CTL
-	 */
-	protected void writeDirectSubset() 
+	/** Reads a complete row of the last dimension, and writes every
+	 *  stride'th value of it as comma-separated ASCII text. */
+	protected void writeAsciiRow(Dim dim)
 	    throws IOException {
 
-	    if (debug()) debug("reading subset data directly...");
-	    GradsDataInfo.CTL ctl = data.info.getCTL();
-	    if (debug()) 
-		if (data.info.hasLevels()) debug("variable has a Z dimension");
-	    if (debug()) 
-		if (data.info.hasEnsemble()) debug("variable has an E dimension");
-	    
-	    // we add up all the z-levels for all the variables so we
-	    // can easily skip to the variable we're interested in
-	    int varIndex = ctl.getVarIndex(name);
-	    long zSumUpToVar = ctl.getLevelsUpTo(varIndex);
-	    
-	    // offsets in dims array depend on whether variable is 
-	    // Z-varying or E-varying, so take care of that outside
-	    // the for loop
-	    int eStart, eStop, eStride;
-	    int zStart, zStop, zStride;
-	    Dim eDim, tDim, yDim, xDim; 
-	    if (data.info.hasEnsemble() & data.info.hasLevels()) {
-		// variable has E and Z 
-		eStart  = dims[0].start;
-		eStop   = dims[0].stop;
-		eStride = dims[0].stride;
-		tDim = dims[1];
-		zStart  = dims[2].start;
-		zStop   = dims[2].stop;
-		zStride = dims[2].stride;
-		yDim = dims[3];
-		xDim = dims[4];
-	    }
-	    else if (data.info.hasEnsemble() & !data.info.hasLevels()) {
-		// variable has E but no Z
-		eStart  = dims[0].start;
-		eStop   = dims[0].stop;
-		eStride = dims[0].stride;
-		tDim = dims[1];
-		zStart  = 0;
-		zStop   = 0;
-		zStride = 1;
-		yDim = dims[3];
-		xDim = dims[4];
-	    }
-	    else if (!data.info.hasEnsemble() & data.info.hasLevels()) {
-		// variable has Z but no E
-		eStart  = 0;
-		eStop   = 0;
-		eStride = 1;
-		tDim = dims[0];
-		zStart  = dims[1].start;
-		zStop   = dims[1].stop;
-		zStride = dims[1].stride;
-		yDim = dims[2];
-		xDim = dims[3];
-	    } else {
-		// variable has no Z and no E
-		eStart  = 0;
-		eStop   = 0;
-		eStride = 1;
-		tDim = dims[0];
-		zStart  = 0;
-		zStop   = 0;
-		zStride = 1;
-		yDim = dims[2];
-		xDim = dims[3];
-	    }
-
-	    long fileOffset = 0, oldFileOffset = 0;
-	    long skipBytes;
-	    
-	    if (xDim.stride > 1) {
-		// can only read and write one value at a time if x dimension 
-		// needs subsampling
-		for (int e = eStart; e <= eStop; e += eStride) {
-		    for (int t = tDim.start; t <= tDim.stop; t += tDim.stride) {
-			for (int z = zStart; z <= zStop; z += zStride) {
-			    for (int y = yDim.start; y <= yDim.stop; y += yDim.stride) {
-				for (int x = xDim.start; x <= xDim.stop; x += xDim.stride) {
-
-				    fileOffset = (e * ctl.xyztSize) + 
-					(t * ctl.xyzSize) + 
-					((zSumUpToVar + z) * ctl.xySize) + 
-					(y * ctl.xSize) + 
-					x;
-				    skipBytes = (fileOffset - oldFileOffset) * FLOAT_SIZE;
-				    skipFully(in, skipBytes);
-				    out.writeFloat(in.readFloat());
-				    oldFileOffset = fileOffset + 1; 
-				}
-			    }
-			}
-		    }
+	    int inBytes = dim.inputSize * valueSize;
+	    if (rowBuffer == null) {
+		rowBuffer = new byte[inBytes];
+	    }
+	    in.readFully(rowBuffer, 0, inBytes);
+
+	    int step = dim.stride * valueSize;
+	    int inPos = 0;
+	    for (dim.pos = 0; dim.pos < dim.outputSize; dim.pos++) {
+		if (dim.pos > 0) {
+		    p.print(", ");
 		}
-	    } else {
-		// if x dimension doesn't need subsampling, we can read 
-		// and write a whole row at a time using a buffer
-		byte[] buf = new byte[xDim.inputSize * FLOAT_SIZE];
-
-		for (int e = eStart; e <= eStop; e += eStride) {
-		    for (int t = tDim.start; t <= tDim.stop; t += tDim.stride) {
-			for (int z = zStart; z <= zStop; z += zStride) {
-			    for (int y = yDim.start; y <= yDim.stop; y += yDim.stride) {
-				
-				fileOffset = ((long)e * ctl.xyztSize) + 
-				    ((long)t * ctl.xyzSize) + 
-				    ((long)(zSumUpToVar + z) * ctl.xySize) + 
-				    ((long)y * ctl.xSize) + 
-				    (long)xDim.start;
-				if (debug()) debug("y=" + y + 
-						   " z=" + z + 
-						   " t=" + t + 
-						   " e=" + e + 
-						   " pos=" + fileOffset +
-						   " buf=" + xDim.inputSize);
-				skipBytes = (fileOffset - oldFileOffset) * FLOAT_SIZE;
-				skipFully(in, skipBytes);
-				Spooler.spool(buf.length, in, out, buf);
-				oldFileOffset = fileOffset + xDim.inputSize; 
-			    }
-			}
-		    }
+		int high = getInt(rowBuffer, inPos);
+		if (isSubset) {
+		    p.print(Float.intBitsToFloat(high));
+		} else {
+		    long low = getInt(rowBuffer, inPos + 4) & 0xffffffffL;
+		    p.print(Double.longBitsToDouble(((long)high << 32) | low));
 		}
-	    }	
+		inPos += step;
+	    }
 	}
-    
 
-	/** Wrapper for the InputStream.skip() method, that keeps
-	 * calling skip() until the requested number of bytes are in
-	 * fact skipped.
-	 */
-	protected void skipFully(InputStream in, long skipBytes) 
+	/** Reads a big-endian int from a buffer */
+	protected int getInt(byte[] b, int pos) {
+	    return (b[pos] << 24) | 
+		((b[pos + 1] & 0xff) << 16) | 
+		((b[pos + 2] & 0xff) << 8) | 
+		(b[pos + 3] & 0xff);
+	}
+
+	/** Reads a complete row of the last dimension, and writes every
+	 *  stride'th value of it in binary format. The values are
+	 *  already in the byte order required by DODS, so they are
+	 *  simply copied. */
+	protected void writeBinaryRow(Dim dim)
 	    throws IOException {
 
-	    long skipped = 0;
-	    while (skipped < skipBytes) {
-		skipped += in.skip(skipBytes - skipped);
+	    int inBytes = dim.inputSize * valueSize;
+	    int outBytes = dim.outputSize * valueSize;
+	    if (rowBuffer == null) {
+		rowBuffer = new byte[inBytes];
+		gatherBuffer = new byte[outBytes];
+	    }
+	    in.readFully(rowBuffer, 0, inBytes);
+	    if (dim.stride == 1) {
+		out.write(rowBuffer, 0, inBytes);
+		return;
 	    }
-	}
 
+	    int step = dim.stride * valueSize;
+	    int inPos = 0;
+	    int outPos = 0;
+	    if (valueSize == FLOAT_SIZE) {
+		while (outPos < outBytes) {
+		    gatherBuffer[outPos] = rowBuffer[inPos];
+		    gatherBuffer[outPos + 1] = rowBuffer[inPos + 1];
+		    gatherBuffer[outPos + 2] = rowBuffer[inPos + 2];
+		    gatherBuffer[outPos + 3] = rowBuffer[inPos + 3];
+		    inPos += step;
+		    outPos += FLOAT_SIZE;
+		}
+	    } else {
+		while (outPos < outBytes) {
+		    System.arraycopy(rowBuffer, inPos, 
+				     gatherBuffer, outPos, valueSize);
+		    inPos += step;
+		    outPos += valueSize;
+		}
+	    }
+	    out.write(gatherBuffer, 0, outBytes);
+	}
 
-	/** Writes a single data value, in ASCII or binary form as appropriate. */
-	protected void writeValue(Dim dim)
+	/** Writes a subset in binary format, directly from the original
+	 *  datafile(s).  This avoids the need to invoke GrADS and create
+	 *  a temporary subset file, which markedly improves
+	 *  performance. However, the data must be stored as binary
+	 *  floats (see documentation for 'direct_subset' in the
+	 *  &lt;dataset&gt; tag). The file layout is handled by
+	 *  GradsGridReader.
+	 * @see org.iges.grads.server.GradsGridReader
+	 */
+	protected void writeDirectSubset() 
 	    throws IOException {
 
-	    if (debug()) debug("writing value");
-	    if (sendASCII) {
-		if (dim.pos > 0) {
-		    p.print(", ");
-		}
-		if (isSubset) {
-		    p.print(in.readFloat());
-		} else {
-		    p.print(in.readDouble());
-		}
-	    } else {
-		if (isSubset) {
-		    out.writeFloat(in.readFloat());
-		} else {
-		    out.writeDouble(in.readDouble());
+	    if (debug()) debug("reading subset data directly...");
+	    GradsDataInfo.CTL ctl = data.info.getCTL();
+	    int varIndex = ctl.getVarIndex(name);
+
+	    // the variable's dimensions depend on whether it has levels
+	    // and whether the dataset has ensembles, so find them by name
+	    Dim eDim = null, tDim = null, zDim = null, yDim = null, xDim = null;
+	    for (int i = 0; i < dims.length; i++) {
+		if (dims[i].name.equals("ens")) {
+		    eDim = dims[i];
+		} else if (dims[i].name.equals("time")) {
+		    tDim = dims[i];
+		} else if (dims[i].name.equals("lev")) {
+		    zDim = dims[i];
+		} else if (dims[i].name.equals("lat")) {
+		    yDim = dims[i];
+		} else if (dims[i].name.equals("lon")) {
+		    xDim = dims[i];
 		}
 	    }
+	    int[] start = new int[5];
+	    int[] stop = new int[5];
+	    int[] stride = { 1, 1, 1, 1, 1 };
+	    setRange(eDim, GradsGridReader.E, start, stop, stride);
+	    setRange(tDim, GradsGridReader.T, start, stop, stride);
+	    setRange(zDim, GradsGridReader.Z, start, stop, stride);
+	    setRange(yDim, GradsGridReader.Y, start, stop, stride);
+	    setRange(xDim, GradsGridReader.X, start, stop, stride);
+
+	    GradsGridReader reader = 
+		new GradsGridReader(ctl, data.info.getSourceFile(), mappings);
+	    try {
+		reader.readSubset(varIndex, start, stop, stride, out);
+		if (debug()) debug("read " + reader.getRowCount() + 
+				   " rows in " + reader.getRunCount() + 
+				   " reads");
+	    } finally {
+		reader.close();
+	    }
 	}
 
+	/** Copies the range of a dimension into the arrays passed to
+	 *  GradsGridReader.readSubset(). A dimension the variable
+	 *  doesn't have is left as a single entry at index 0. */
+	protected void setRange(Dim dim, int index, 
+				int[] start, int[] stop, int[] stride) {
+	    if (dim != null) {
+		start[index] = dim.start;
+		stop[index] = dim.stop;
+		stride[index] = dim.stride;
+	    }
+	}
+    
+
+	/** Size of the XDR array length words */
+	protected static final int INT_SIZE = 4;
 	/** Used for calculating file and buffer sizes */ 
 	protected static final int FLOAT_SIZE = 4;
 	/** Used for calculating file and buffer sizes */ 
@@ -619,15 +1153,31 @@ public class GradsGridSubsetter
 	protected DataMethods data;
 	protected String name;
 	protected File inputFile;
-	protected PrintStream p;
+	protected GradsSubsetCache.SharedSubset subset;
+	protected AsciiOutputStream p;
 	protected DataInputStream in;
 	protected DataOutputStream out;
+	/** The output stream, if it compresses the data */
+	protected ParallelDeflaterOutputStream compressor;
+	/** The output stream, if only part of the response is sent */
+	protected RangeOutputStream range;
 	protected Dim[] dims;
 	protected int totalInputSize;
 	protected int totalOutputSize;
 	protected boolean sendASCII;
 	protected int valueSize;
 	protected boolean isSubset;
+	/** True if the data is read directly from the dataset's files */
+	protected boolean direct;
+	/** True if the input is a slice of a larger subset */
+	protected boolean sliced;
+	/** True if the input contains only the points selected by the
+	 *  strides, so that no values need to be skipped */
+	protected boolean prestrided;
+	/** Holds a row of the last dimension as read from the subset */
+	protected byte[] rowBuffer;
+	/** Holds the values of a row that are sent to the client */
+	protected byte[] gatherBuffer;
 
 	/** Keeps track of useful numbers for stride calculations */
 	protected class Dim {
@@ -672,4 +1222,69 @@ public class GradsGridSubsetter
 	    }
 	}
     }
+
+    /** Returns the pool that runs prefetches for all requests, or
+     *  null if there is only one GrADS task slot. The pool has one
+     *  thread fewer than there are slots, and no queue, so that a
+     *  prefetch is dropped rather than queued when the pool is
+     *  busy. Idle threads exit after a while. */
+    protected synchronized ThreadPoolExecutor getPrefetchPool() {
+	int threads = tool.getTask().getQueue().getMaxTasks() - 1;
+	if (threads <= 0) {
+	    return null;
+	}
+	if (prefetchPool == null) {
+	    prefetchPool = new ThreadPoolExecutor
+		(0, threads, 
+		 60, TimeUnit.SECONDS, 
+		 new SynchronousQueue(),
+		 new PrefetchThreadFactory());
+	} else if (prefetchPool.getMaximumPoolSize() != threads) {
+	    prefetchPool.setMaximumPoolSize(threads);
+	}
+	return prefetchPool;
+    }
+
+    protected static class PrefetchThreadFactory
+	implements ThreadFactory {
+
+	public Thread newThread(Runnable r) {
+	    Thread thread = new Thread(r, "subset-prefetch-" + (++count));
+	    thread.setDaemon(true);
+	    return thread;
+	}
+
+	protected int count;
+    }
+
+    /** Sets the cache of mapped data files used for direct subsets,
+     *  or null to read the files without mapping them */
+    public void setMappings(GradsMappedFiles mappings) {
+	this.mappings = mappings;
+    }
+
+    /** Sets the cache that keeps track of subset files */
+    public void setCache(GradsSubsetCache cache) {
+	this.cache = cache;
+    }
+
+    /** Sets the size of the tiles that new subsets are widened to,
+     *  in grid points, or 0 to generate exactly the bounds requested */
+    public void setTileSize(int tileSize) {
+	this.tileSize = tileSize;
+    }
+
+    /** Sets whether subsets are streamed to the client while GrADS
+     *  is still writing them */
+    public void setStreaming(boolean streamSubsets) {
+	this.streamSubsets = streamSubsets;
+    }
+
+    protected GradsSubsetCache cache;
+    protected ThreadPoolExecutor prefetchPool;
+    protected int tileSize;
+    protected boolean streamSubsets;
+
+    protected GradsMappedFiles mappings;
+
 }
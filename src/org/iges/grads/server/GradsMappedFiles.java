@@ -0,0 +1,182 @@
+/* Copyright (C) 2000-2021 by George Mason University.
+*  Authored by Joe Wielgosz and maintained by Jennifer Adams.
+*  See file COPYRIGHT for more information.
+*/
+package org.iges.grads.server;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/** Keeps the data files of direct-subset datasets memory-mapped
+ *  between requests, so that reading a subset does not require any
+ *  system calls or copying into a separate buffer. <p>
+ *
+ *  Each file is mapped in windows of a fixed size, as they are
+ *  needed. Consecutive windows overlap slightly, so that a row of data
+ *  that crosses a window boundary can usually be read from a single
+ *  window. A file is mapped again if its size or modification time
+ *  changes. The least recently used files are dropped when the
+ *  number of files reaches the limit; the memory is released once
+ *  the garbage collector finds that no request is still using it. <p>
+ *
+ *  If a mapped file is truncated or rewritten in place, reading the
+ *  mapping raises an InternalError rather than an IOException;
+ *  readers must catch it and drop() the mapping.
+ */
+public class GradsMappedFiles {
+
+    /** Creates an empty cache.
+     * @param maxFiles Maximum number of files to keep mapped
+     * @param windowSize Size of each mapped window in bytes
+     */
+    public GradsMappedFiles(int maxFiles, long windowSize) {
+	this.files = new LinkedHashMap(16, 0.75f, true);
+	setLimits(maxFiles, windowSize);
+    }
+
+    /** Changes the limits for the cache. Windows that are already
+     *  mapped keep their size until their file is mapped again. */
+    public synchronized void setLimits(int maxFiles, long windowSize) {
+	this.maxFiles = maxFiles;
+	this.windowSize = Math.min(Math.max(windowSize, 1024 * 1024),
+				   Integer.MAX_VALUE - WINDOW_OVERLAP);
+	trim();
+    }
+
+    /** Returns the mapping for the file given, or null if the file
+     *  does not exist */
+    public MappedFile get(File file) {
+	long length = file.length();
+	long lastModified = file.lastModified();
+	if (lastModified == 0) {
+	    return null;
+	}
+	String key = file.getAbsolutePath();
+	synchronized (this) {
+	    MappedFile mapped = (MappedFile)files.get(key);
+	    if (mapped != null &&
+		mapped.length == length &&
+		mapped.lastModified == lastModified) {
+		hits++;
+		return mapped;
+	    }
+	    misses++;
+	    mapped = new MappedFile(file, length, lastModified, windowSize);
+	    files.put(key, mapped);
+	    trim();
+	    return mapped;
+	}
+    }
+
+    /** Removes a mapping that could not be read, because its file
+     *  was truncated or rewritten in place. The file is mapped again
+     *  the next time it is needed. */
+    public synchronized void drop(MappedFile mapped) {
+	String key = mapped.file.getAbsolutePath();
+	if (files.get(key) == mapped) {
+	    files.remove(key);
+	    faults++;
+	}
+    }
+
+    /** Returns a one-line summary of the cache's activity */
+    public synchronized String getStatistics() {
+	return "mapped files: " + files.size() + " (limit " + maxFiles +
+	    "), " + hits + " hits, " + misses + " misses, " +
+	    faults + " faults, " +
+	    (windowsMapped * windowSize / (1024 * 1024)) +
+	    " MB mapped so far";
+    }
+
+    protected void trim() {
+	Iterator it = files.values().iterator();
+	while (files.size() > maxFiles && it.hasNext()) {
+	    it.next();
+	    it.remove();
+	}
+    }
+
+    protected synchronized void windowMapped() {
+	windowsMapped++;
+    }
+
+    /** The mapped windows of a single file */
+    public class MappedFile {
+
+	protected MappedFile(File file,
+			     long length,
+			     long lastModified,
+			     long windowSize) {
+	    this.file = file;
+	    this.length = length;
+	    this.lastModified = lastModified;
+	    this.windowSize = windowSize;
+	    this.windows = new MappedByteBuffer[(int)(length / windowSize) + 1];
+	}
+
+	/** Returns a buffer whose position and limit cover the range
+	 *  of the file given, or null if the range is not covered by
+	 *  a single window, in which case the caller must read it some
+	 *  other way. The buffer must not be modified. */
+	public ByteBuffer get(long offset, int count)
+	    throws IOException {
+
+	    if (offset < 0 || offset + count > length) {
+		return null;
+	    }
+	    int index = (int)(offset / windowSize);
+	    long windowStart = index * windowSize;
+	    if (offset + count > windowStart + windowSize + WINDOW_OVERLAP) {
+		return null;
+	    }
+	    ByteBuffer window = getWindow(index).duplicate();
+	    int start = (int)(offset - windowStart);
+	    if (start + count > window.capacity()) {
+		return null;
+	    }
+	    window.limit(start + count);
+	    window.position(start);
+	    return window;
+	}
+
+	protected synchronized MappedByteBuffer getWindow(int index)
+	    throws IOException {
+
+	    if (windows[index] == null) {
+		long start = index * windowSize;
+		long size = Math.min(windowSize + WINDOW_OVERLAP,
+				     length - start);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+		    windows[index] = raf.getChannel().map
+			(FileChannel.MapMode.READ_ONLY, start, size);
+		} finally {
+		    raf.close();
+		}
+		windowMapped();
+	    }
+	    return windows[index];
+	}
+
+	protected File file;
+	protected long length;
+	protected long lastModified;
+	protected long windowSize;
+	protected MappedByteBuffer[] windows;
+    }
+
+    /** Amount by which consecutive windows overlap */
+    protected static final int WINDOW_OVERLAP = 1024 * 1024;
+
+    protected Map files;
+    protected int maxFiles;
+    protected long windowSize;
+
+    protected long hits;
+    protected long misses;
+    protected long faults;
+    protected long windowsMapped;
+
+}
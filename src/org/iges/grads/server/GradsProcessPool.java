@@ -0,0 +1,383 @@
+/* Copyright (C) 2000-2021 by George Mason University.
+*  Authored by Joe Wielgosz and maintained by Jennifer Adams.
+*  See file COPYRIGHT for more information.
+*/
+package org.iges.grads.server;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.iges.anagram.AnagramException;
+
+/** A set of GrADS processes that are kept running between tasks, to
+ *  avoid the cost of starting GrADS for every script. <p>
+ *
+ *  Each process is started without a command, so that it reads
+ *  commands from its standard input. A task is run by sending it the
+ *  command <code>run <i>script args</i></code>, followed by
+ *  <code>reinit</code> to close any output files and reset the
+ *  process state, and then by a sentinel script that prints a unique
+ *  marker. Everything the process prints up to the marker is the
+ *  output of the task.<p>
+ *
+ *  A process is discarded, and a new one started when needed, after it
+ *  has run a certain number of tasks, if a task fails or exceeds its
+ *  time limit, or if the process exits (for instance because a
+ *  script called 'quit').
+ */
+public class GradsProcessPool {
+
+    /** Creates a new pool. No processes are started until needed.
+     * @param cmd Command line that starts a GrADS process that reads
+     * commands from its standard input
+     * @param sentinelScript Script that prints "gds task complete"
+     * followed by its argument
+     * @param size Maximum number of processes
+     * @param maxUses Number of tasks a process may run before it is
+     * replaced
+     */
+    public GradsProcessPool(String[] cmd,
+			    File sentinelScript,
+			    int size,
+			    int maxUses) {
+	this.cmd = cmd;
+	this.sentinelScript = sentinelScript;
+	this.size = size;
+	this.maxUses = maxUses;
+	this.idle = new LinkedList();
+    }
+
+    /** Creates a task that will run the GrADS command given on one
+     *  of the processes in this pool. */
+    public Task task(String command, long timeLimit) {
+	return new PooledTask(command, timeLimit);
+    }
+
+    /** Stops all idle processes. Processes that are running a task are
+     *  stopped when the task finishes. */
+    public synchronized void close() {
+	closed = true;
+	while (idle.size() > 0) {
+	    ((Interpreter)idle.removeFirst()).destroy();
+	    live--;
+	}
+	notifyAll();
+    }
+
+    /** Returns a one-line summary of the pool's activity */
+    public synchronized String getStatistics() {
+	return "GrADS processes: " + live + " running (limit " + size +
+	    "), " + idle.size() + " idle, " + started + " started";
+    }
+
+    /** Takes an idle process from the pool, or starts a new one if
+     *  there are none and the pool is not full.
+     * @param deadline Time by which the process must be ready
+     */
+    protected Interpreter borrow(long deadline)
+	throws AnagramException {
+
+	synchronized (this) {
+	    while (true) {
+		if (closed) {
+		    throw new AnagramException("GrADS process pool is closed");
+		}
+		if (idle.size() > 0) {
+		    return (Interpreter)idle.removeFirst();
+		}
+		if (live < size) {
+		    live++;
+		    started++;
+		    break;
+		}
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+		    throw new AnagramException
+			("timed out waiting for a GrADS process");
+		}
+		try {
+		    wait(remaining);
+		} catch (InterruptedException ie) {}
+	    }
+	}
+
+	// start the process outside the monitor, since it may take a while
+	try {
+	    return new Interpreter(deadline);
+	} catch (AnagramException ae) {
+	    synchronized (this) {
+		live--;
+		notifyAll();
+	    }
+	    throw ae;
+	}
+    }
+
+    /** Returns a process to the pool, or stops it if it should not be
+     *  reused. */
+    protected synchronized void giveBack(Interpreter interpreter,
+					 boolean succeeded) {
+	if (succeeded && !closed && interpreter.isAlive() &&
+	    interpreter.uses < maxUses) {
+	    idle.addLast(interpreter);
+	} else {
+	    interpreter.destroy();
+	    live--;
+	}
+	notifyAll();
+    }
+
+    /** Removes the GrADS prompt from the start of a line of output */
+    protected static String stripPrompt(String line) {
+	while (line.startsWith(PROMPT)) {
+	    line = line.substring(PROMPT.length());
+	}
+	return line;
+    }
+
+    /** A task that runs on a pooled process instead of starting its
+     *  own. */
+    protected class PooledTask
+	extends Task {
+
+	protected PooledTask(String command, long timeLimit) {
+	    super(new String[] { command }, null, null, timeLimit);
+	}
+
+	protected void execute()
+	    throws AnagramException {
+
+	    // the time limit covers waiting for a process as well as
+	    // running the command, as it does for a one-shot task
+	    long deadline = System.currentTimeMillis() + timeLimit;
+	    Interpreter interpreter = borrow(deadline);
+	    boolean succeeded = false;
+	    try {
+		if (!interpreter.execute(cmdString, deadline, 
+					 outputLimit, output)) {
+		    throw new AnagramException
+			("process exceeded time limit of " +
+			 (timeLimit / 1000) + " sec");
+		}
+		// a process whose script reported an error is replaced
+		checkErrors();
+		succeeded = true;
+	    } finally {
+		giveBack(interpreter, succeeded);
+	    }
+	}
+    }
+
+    /** A single GrADS process */
+    protected class Interpreter {
+
+	/** Starts the process, and waits for it to respond to the
+	 *  sentinel script, which ensures that it is able to accept
+	 *  commands.
+	 * @param deadline Time by which the process must be ready
+	 */
+	protected Interpreter(long deadline)
+	    throws AnagramException {
+
+	    try {
+		ProcessBuilder builder = new ProcessBuilder(cmd);
+		builder.redirectErrorStream(true);
+		process = builder.start();
+	    } catch (IOException ioe) {
+		throw new AnagramException("creation of GrADS process " +
+					   "failed", ioe);
+	    }
+	    commands = new PrintWriter
+		(new BufferedWriter
+		 (new OutputStreamWriter
+		  (process.getOutputStream())));
+	    lines = new LinkedBlockingQueue(MAX_QUEUED_LINES);
+	    Thread reader = new Thread("grads-reader") {
+		    public void run() {
+			readOutput();
+		    }
+		};
+	    reader.setDaemon(true);
+	    reader.start();
+
+	    boolean started;
+	    try {
+		started = execute(null, deadline, Integer.MAX_VALUE, 
+				  new StringBuffer());
+	    } catch (AnagramException ae) {
+		destroy();
+		throw ae;
+	    }
+	    if (!started) {
+		throw new AnagramException("timed out starting GrADS process");
+	    }
+	    if (!alive) {
+		throw new AnagramException("GrADS process exited " +
+					   "during startup");
+	    }
+	    uses = 0;
+	}
+
+	/** Sends a command, and collects the output it produces.
+	 * @param command The command, or null just to wait for the
+	 * process to become idle
+	 * @param deadline Time by which the command must complete
+	 * @param outputLimit Maximum number of characters of output
+	 * @return False if the deadline passed, in which case the
+	 * process has been stopped
+	 * @throws AnagramException if the output exceeds the limit, in
+	 * which case the process has also been stopped
+	 */
+	protected boolean execute(String command,
+				  long deadline,
+				  int outputLimit,
+				  StringBuffer output)
+	    throws AnagramException {
+
+	    uses++;
+	    String marker = DONE_MARKER + (++markerCount);
+	    if (command != null) {
+		commands.println(command);
+		commands.println("reinit");
+	    }
+	    commands.println("run " + sentinelScript.getAbsolutePath() +
+			     " " + markerCount);
+	    commands.flush();
+	    if (commands.checkError()) {
+		alive = false;
+		throw new AnagramException("GrADS process is not " +
+					   "accepting commands");
+	    }
+
+	    while (true) {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+		    destroy();
+		    return false;
+		}
+		Object next;
+		try {
+		    next = lines.poll(remaining, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ie) {
+		    continue;
+		}
+		if (next == null) {
+		    continue;
+		}
+		if (next == EOF) {
+		    // the script quit GrADS; its output is complete
+		    alive = false;
+		    return true;
+		}
+		String line = stripPrompt((String)next);
+		if (line.equals(marker)) {
+		    return true;
+		}
+		if (output.length() + line.length() + 1 > outputLimit) {
+		    destroy();
+		    throw new AnagramException("process output exceeded " + 
+					       outputLimit + " characters");
+		}
+		output.append(line);
+		output.append('\n');
+	    }
+	}
+
+	/** Runs on a separate thread, copying lines of output from the
+	 *  process to the queue. */
+	protected void readOutput() {
+	    try {
+		BufferedReader in = new BufferedReader
+		    (new InputStreamReader(process.getInputStream()));
+		// very long lines are split, so that a runaway script
+		// can't fill the heap before the output limit is checked
+		StringBuffer line = new StringBuffer();
+		int c;
+		while ((c = in.read()) >= 0) {
+		    if (c == '\n') {
+			if (!queue(line.toString())) {
+			    return;
+			}
+			line.setLength(0);
+		    } else if (c != '\r') {
+			line.append((char)c);
+			if (line.length() >= MAX_LINE_LENGTH) {
+			    if (!queue(line.toString())) {
+				return;
+			    }
+			    line.setLength(0);
+			}
+		    }
+		}
+		if (line.length() > 0) {
+		    queue(line.toString());
+		}
+	    } catch (IOException ioe) {
+	    } finally {
+		queue(EOF);
+	    }
+	}
+
+	/** Adds a line of output to the queue, waiting while it is
+	 *  full.
+	 * @return False if the process has been stopped, in which case
+	 * no more output will be collected
+	 */
+	protected boolean queue(Object line) {
+	    while (alive) {
+		try {
+		    if (lines.offer(line, 1, TimeUnit.SECONDS)) {
+			return true;
+		    }
+		} catch (InterruptedException ie) {
+		    return false;
+		}
+	    }
+	    return false;
+	}
+
+	protected boolean isAlive() {
+	    return alive;
+	}
+
+	protected void destroy() {
+	    alive = false;
+	    commands.close();
+	    process.destroy();
+	}
+
+	protected Process process;
+	protected PrintWriter commands;
+	protected BlockingQueue lines;
+	protected volatile boolean alive = true;
+	protected int uses;
+	protected int markerCount;
+    }
+
+    /** Printed by the sentinel script, followed by a sequence number */
+    protected static final String DONE_MARKER = "gds task complete ";
+
+    /** Printed by GrADS when it is ready for a command */
+    protected static final String PROMPT = "ga-> ";
+
+    /** Longest line of output passed on as a single line */
+    protected static final int MAX_LINE_LENGTH = 65536;
+
+    /** Lines of output that may be waiting to be collected */
+    protected static final int MAX_QUEUED_LINES = 1024;
+
+    /** Put in the output queue when the process exits */
+    protected static final Object EOF = new Object();
+
+    protected String[] cmd;
+    protected File sentinelScript;
+    protected int size;
+    protected int maxUses;
+
+    protected LinkedList idle;
+    protected int live;
+    protected long started;
+    protected boolean closed;
+
+}
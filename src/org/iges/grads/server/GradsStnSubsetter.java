@@ -25,6 +25,7 @@ public class GradsStnSubsetter
 		       CEEvaluator ce,
 		       long subsetLimit,
 		       boolean useASCII,
+		       Privilege privilege,
 		       OutputStream out)
 	throws ModuleException {
 
@@ -54,7 +55,7 @@ public class GradsStnSubsetter
 
 	// run station data script
 	Task task = tool.getTask().task(info.getGradsBinaryType(),
-					"station", argArray);	
+					"station", argArray, privilege);	
 	try {
 	    if (debug()) debug("starting GrADS task");
 	    try {
@@ -0,0 +1,464 @@
+/* Copyright (C) 2000-2021 by George Mason University.
+*  Authored by Joe Wielgosz and maintained by Jennifer Adams.
+*  See file COPYRIGHT for more information.
+*/
+package org.iges.grads.server;
+
+import java.io.*;
+import java.util.*;
+
+import org.iges.anagram.ModuleException;
+import org.iges.util.Bounds;
+import org.iges.util.DeflatedFile;
+
+/** Keeps track of the subset files generated by GrADS. Requests for
+ *  a subset that is already being generated or streamed share the
+ *  same file, and once no request is using a file it may be kept on
+ *  disk for later requests, up to a limit on the total number and
+ *  size of the files. The least recently used files are deleted
+ *  first. <p>
+ *
+ *  A request can also be answered from a subset of the same variable
+ *  whose bounds contain those requested, by reading a slice of its
+ *  file (see org.iges.util.SliceInputStream). <p>
+ *
+ *  Subsets are identified by a key that includes the dataset's
+ *  creation time, so a subset is never served from an older version
+ *  of a dataset. The files for a dataset are also deleted as soon as
+ *  the dataset is found to have changed, by invalidate(). <p>
+ *
+ *  A compressed copy of a subset file is made the first time the
+ *  subset is sent to a client that accepts compression, and is kept
+ *  and deleted along with the file. <p>
+ *
+ *  With limits of zero, files are deleted as soon as the last request
+ *  using them is finished.
+ */
+public class GradsSubsetCache {
+
+    /** Creates an empty cache.
+     * @param maxBytes Maximum total size of the files kept
+     * @param maxEntries Maximum number of files kept
+     */
+    public GradsSubsetCache(long maxBytes, int maxEntries) {
+	this.subsets = new LinkedHashMap(16, 0.75f, true);
+	setLimits(maxBytes, maxEntries);
+    }
+
+    /** Changes the limits for the cache, deleting files if the cache
+     *  is now too large */
+    public void setLimits(long maxBytes, int maxEntries) {
+	List deleted;
+	synchronized (this) {
+	    this.maxBytes = maxBytes;
+	    this.maxEntries = maxEntries;
+	    deleted = trim();
+	}
+	delete(deleted);
+    }
+
+    /** Returns a subset that contains the bounds requested, creating
+     *  one if necessary. This is either a subset with exactly the
+     *  bounds requested, or the smallest subset of the same variable
+     *  and dataset version that contains them, or else a new subset
+     *  with the bounds given by generateBounds. The caller must call
+     *  claim() to find out whether it should generate the file, and
+     *  must pass the subset to release() when it is finished with it.
+     * @param dataset Name of the dataset the subset is from
+     * @param version Identifies the dataset version and variable
+     * @param bounds Bounds requested
+     * @param generateBounds Bounds of the subset to create if none
+     * is found, which must contain the bounds requested
+     */
+    public synchronized SharedSubset acquire(String dataset, 
+					     String version,
+					     Bounds.Grid bounds,
+					     Bounds.Grid generateBounds) {
+	SharedSubset subset = 
+	    (SharedSubset)subsets.get(version + " " + bounds);
+	if (subset == null) {
+	    subset = findContaining(version, bounds);
+	    if (subset != null) {
+		slices++;
+	    }
+	}
+	if (subset == null) {
+	    String key = version + " " + generateBounds;
+	    subset = new SharedSubset(dataset, key, generateBounds);
+	    subsets.put(key, subset);
+	    misses++;
+	} else if (subset.done) {
+	    hits++;
+	} else {
+	    shared++;
+	}
+	subset.readers++;
+	return subset;
+    }
+
+    /** Finds the smallest subset of the same dataset version and
+     *  variable that contains the bounds given */
+    protected SharedSubset findContaining(String version, 
+					  Bounds.Grid bounds) {
+	String prefix = version + " ";
+	SharedSubset best = null;
+	Iterator it = subsets.values().iterator();
+	while (it.hasNext()) {
+	    SharedSubset subset = (SharedSubset)it.next();
+	    if (subset.key.startsWith(prefix) &&
+		subset.error == null &&
+		subset.bounds.contains(bounds) &&
+		(best == null || 
+		 subset.bounds.getSize() < best.bounds.getSize())) {
+		best = subset;
+	    }
+	}
+	if (best != null) {
+	    // mark it as recently used
+	    subsets.get(best.key);
+	}
+	return best;
+    }
+
+    /** Returns true for exactly one caller of acquire() for a given
+     *  subset, which must then generate the file and call finished() */
+    public synchronized boolean claim(SharedSubset subset) {
+	if (subset.claimed) {
+	    return false;
+	}
+	subset.claimed = true;
+	return true;
+    }
+
+    /** Adds a reference to a subset obtained from acquire(), for a
+     *  thread other than the caller's that will use it. The thread
+     *  must pass the subset to release() when it is finished. */
+    public synchronized void retain(SharedSubset subset) {
+	subset.readers++;
+    }
+
+    /** Records that a subset is being written to the file given, by
+     *  a process that is still running. Requests that can read the
+     *  file as it grows may do so with open(). */
+    public synchronized void started(SharedSubset subset, File file) {
+	subset.file = file;
+	notifyAll();
+    }
+
+    /** Records the outcome of generating a subset, and wakes up any
+     *  requests waiting for it
+     * @param file The subset file, or null if generation failed
+     * @param error The reason generation failed, or null
+     */
+    public void finished(SharedSubset subset,
+			 File file,
+			 ModuleException error) {
+	List deleted = null;
+	synchronized (this) {
+	    subset.file = file;
+	    subset.error = error;
+	    subset.done = true;
+	    if (error != null) {
+		// later requests should try again
+		if (subsets.get(subset.key) == subset) {
+		    subsets.remove(subset.key);
+		}
+	    } else {
+		subset.size = file.length();
+		if (subsets.get(subset.key) == subset) {
+		    totalBytes += subset.size;
+		    deleted = trim();
+		}
+	    }
+	    notifyAll();
+	}
+	delete(deleted);
+    }
+
+    /** Waits until the subset has been generated by another request */
+    public synchronized void waitFor(SharedSubset subset) {
+	while (!subset.done) {
+	    try {
+		wait(0);
+	    } catch (InterruptedException ie) {}
+	}
+    }
+
+    /** Waits until the subset has either been generated, or started
+     *  with a file that can be read as it grows */
+    public synchronized void waitForStart(SharedSubset subset) {
+	while (!subset.done && subset.file == null) {
+	    try {
+		wait(0);
+	    } catch (InterruptedException ie) {}
+	}
+    }
+
+    /** Returns true if generation of the subset has finished */
+    public synchronized boolean isDone(SharedSubset subset) {
+	return subset.done;
+    }
+
+    /** Opens the file of a subset that has been started. If the
+     *  subset is still being generated, the stream waits for more
+     *  data to be written whenever it reaches the end of the file,
+     *  and fails if generation fails. */
+    public InputStream open(SharedSubset subset) 
+	throws IOException {
+	return new GrowingInputStream(subset);
+    }
+
+    /** Returns the compressed copy of a subset that has been
+     *  generated, creating it if necessary. The copy counts towards
+     *  the size of the cache.
+     * @param level Compression level to use if the copy is created
+     * @return The copy, which the caller must close
+     */
+    public DeflatedFile getDeflated(SharedSubset subset, int level)
+	throws IOException {
+
+	DeflatedFile deflated;
+	synchronized (subset) {
+	    // only one request compresses the file
+	    deflated = DeflatedFile.get(subset.file, level);
+	}
+	synchronized (this) {
+	    if (!subset.deflated) {
+		subset.deflated = true;
+		subset.size += deflated.getSize();
+		if (subsets.get(subset.key) == subset) {
+		    totalBytes += deflated.getSize();
+		}
+	    }
+	}
+	return deflated;
+    }
+
+    /** Indicates that the caller has finished reading a subset
+     *  obtained from acquire(). If no other request is using it, the
+     *  file is either kept in the cache or deleted. */
+    public void release(SharedSubset subset) {
+	List deleted;
+	synchronized (this) {
+	    subset.readers--;
+	    if (subset.readers > 0) {
+		return;
+	    }
+	    if (subsets.get(subset.key) != subset) {
+		// invalidated, evicted while in use, or failed
+		deleted = Collections.singletonList(subset);
+	    } else {
+		deleted = trim();
+	    }
+	}
+	delete(deleted);
+    }
+
+    /** Deletes all subsets of a dataset. Files that are in use are
+     *  deleted when they are released. */
+    public void invalidate(String dataset) {
+	List deleted = new ArrayList();
+	synchronized (this) {
+	    Iterator it = subsets.values().iterator();
+	    while (it.hasNext()) {
+		SharedSubset subset = (SharedSubset)it.next();
+		if (!subset.dataset.equals(dataset)) {
+		    continue;
+		}
+		it.remove();
+		invalidations++;
+		if (subset.done && subset.error == null) {
+		    totalBytes -= subset.size;
+		}
+		if (subset.readers == 0) {
+		    deleted.add(subset);
+		}
+	    }
+	}
+	delete(deleted);
+    }
+
+    /** Returns a one-line summary of the cache's activity */
+    public synchronized String getStatistics() {
+	return "subset cache: " + subsets.size() + " subsets, " +
+	    (totalBytes / (1024 * 1024)) + " MB (limit " +
+	    (maxBytes / (1024 * 1024)) + " MB, " + maxEntries +
+	    " subsets), " + hits + " hits, " + slices + " sliced, " +
+	    shared + " shared, " +
+	    misses + " misses, " + evictions + " evicted, " +
+	    invalidations + " invalidated";
+    }
+
+    /** Removes the least recently used subsets that aren't in use
+     *  until the cache is within its limits.
+     * @return The subsets whose files should be deleted
+     */
+    protected List trim() {
+	List deleted = new ArrayList();
+	int idle = 0;
+	Iterator it = subsets.values().iterator();
+	while (it.hasNext()) {
+	    SharedSubset subset = (SharedSubset)it.next();
+	    if (subset.readers == 0 && subset.done) {
+		idle++;
+	    }
+	}
+	it = subsets.values().iterator();
+	while ((idle > maxEntries || totalBytes > maxBytes) &&
+	       it.hasNext()) {
+	    SharedSubset subset = (SharedSubset)it.next();
+	    if (subset.readers > 0 || !subset.done) {
+		continue;
+	    }
+	    it.remove();
+	    idle--;
+	    totalBytes -= subset.size;
+	    deleted.add(subset);
+	    evictions++;
+	}
+	return deleted;
+    }
+
+    /** Deletes the files of the subsets given, outside the monitor
+     *  since this may be slow */
+    protected void delete(List deleted) {
+	if (deleted == null) {
+	    return;
+	}
+	Iterator it = deleted.iterator();
+	while (it.hasNext()) {
+	    SharedSubset subset = (SharedSubset)it.next();
+	    if (subset.file != null) {
+		subset.file.delete();
+		DeflatedFile.getCopyFile(subset.file).delete();
+	    }
+	}
+    }
+
+    /** Reads a subset file that may still be growing */
+    protected class GrowingInputStream
+	extends InputStream {
+
+	protected GrowingInputStream(SharedSubset subset) 
+	    throws IOException {
+	    this.subset = subset;
+	    this.raf = new RandomAccessFile(subset.file, "r");
+	}
+
+	public int read() 
+	    throws IOException {
+	    byte[] b = new byte[1];
+	    int count = read(b, 0, 1);
+	    return (count < 0) ? -1 : (b[0] & 0xff);
+	}
+
+	public int read(byte[] b, int off, int len) 
+	    throws IOException {
+
+	    if (len == 0) {
+		return 0;
+	    }
+	    while (true) {
+		// check whether generation has finished before reading,
+		// so that nothing written before it finished is missed
+		boolean finished = isDone(subset);
+		int count = raf.read(b, off, len);
+		if (count > 0) {
+		    return count;
+		}
+		if (finished) {
+		    if (subset.error != null) {
+			throw new IOException("subset generation failed: " +
+					      subset.error.getMessage());
+		    }
+		    return -1;
+		}
+		synchronized (GradsSubsetCache.this) {
+		    if (!subset.done) {
+			try {
+			    GradsSubsetCache.this.wait(GROW_WAIT);
+			} catch (InterruptedException ie) {}
+		    }
+		}
+	    }
+	}
+
+	public void close() 
+	    throws IOException {
+	    raf.close();
+	}
+
+	protected SharedSubset subset;
+	protected RandomAccessFile raf;
+    }
+
+    /** A subset file shared by all requests for the same data. */
+    public static class SharedSubset {
+
+	protected SharedSubset(String dataset, 
+			       String key, 
+			       Bounds.Grid bounds) {
+	    this.dataset = dataset;
+	    this.key = key;
+	    this.bounds = bounds;
+	}
+
+	/** Returns the subset file, once it has been generated */
+	public File getFile() {
+	    return file;
+	}
+
+	/** Returns the bounds of the data in the file, which may
+	 *  be larger than those requested */
+	public Bounds.Grid getBounds() {
+	    return bounds;
+	}
+
+	/** The dataset the subset is from */
+	protected String dataset;
+
+	/** Identifies the dataset version, variable and bounds */
+	protected String key;
+
+	/** The bounds of the subset */
+	protected Bounds.Grid bounds;
+
+	/** The subset file, once it has been generated */
+	protected File file;
+
+	/** Size of the file */
+	protected long size;
+
+	/** Set once a request has taken on generating the file */
+	protected boolean claimed;
+
+	/** Set when generation has finished, successfully or not */
+	protected boolean done;
+
+	/** Set if generation failed */
+	protected ModuleException error;
+
+	/** Number of requests using this subset */
+	protected int readers;
+
+	/** Set once a compressed copy of the file has been made */
+	protected boolean deflated;
+    }
+
+    /** Time in milliseconds to wait for a growing subset file to be
+     *  written to, before checking it again */
+    protected static final long GROW_WAIT = 100;
+
+    protected Map subsets;
+    protected long maxBytes;
+    protected int maxEntries;
+    protected long totalBytes;
+
+    protected long hits;
+    protected long slices;
+    protected long shared;
+    protected long misses;
+    protected long evictions;
+    protected long invalidations;
+
+}
@@ -37,6 +37,8 @@ public abstract class GradsSubsetter
      * @param useASCII If true, print ASCII text; if false, send
      * DODS/3.2 binary stream.
      * @param subsetLimit maximum allowable size for the subset
+     * @param privilege The privilege set of the client, which 
+     * determines the GrADS task slots available to it
      * @throws ModuleException if subsetLimit bytes have already been
      * written and there is still more data; or, if any errors occur
      * during the subset operation
@@ -45,9 +47,24 @@ public abstract class GradsSubsetter
 				CEEvaluator ce,
 				long subsetLimit,
 				boolean useASCII,
+				Privilege privilege,
 				OutputStream out) 
 	throws ModuleException;
 
+    /** Calculates the number of bytes subset() will write in binary
+     *  format, not counting the DDS that comes before the data. If
+     *  this is supported, subset() must call skip() in place of the
+     *  bytes that fall outside the range when given an
+     *  org.iges.util.RangeOutputStream. The default implementation
+     *  returns -1.
+     * @return The length in bytes, or -1 if it isn't known until the
+     * subset is written
+     */
+    public long getBinaryLength(CEEvaluator ce)
+	throws ModuleException {
+	return -1;
+    }
+
     protected int bufferSize;
 
     protected GradsTool tool;
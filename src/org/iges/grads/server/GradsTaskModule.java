@@ -5,6 +5,7 @@
 package org.iges.grads.server;
 
 import java.io.*;
+import java.util.*;
 
 import org.iges.util.FileResolver;
 
@@ -42,12 +43,31 @@ public class GradsTaskModule
 	if (verbose()) verbose("default time limit set to " + 
 			       (timeLimit / 1000) + " sec");
 
+	int maxTasks = (int)setting.getNumAttribute
+	    ("max_tasks", Runtime.getRuntime().availableProcessors());
+	long taskWait = setting.getNumAttribute("task_wait", 60) * 1000;
+	if (queue == null) {
+	    queue = new TaskQueue(maxTasks, taskWait);
+	} else {
+	    queue.setLimits(maxTasks, taskWait);
+	}
+	if (verbose()) verbose("at most " + maxTasks + 
+			       " GrADS processes will run at once; " + 
+			       "others will wait up to " + (taskWait / 1000) + 
+			       " sec");
+
+	// GrADS is verified by running it directly, so stop using the
+	// pooled processes from the previous configuration first
+	retirePools();
+
 	findGrads(setting);
 
 	verifyGrads();
 	
 	useNice = true;
 
+	configurePools(setting);
+
     }
 
     /** Attempts to locate a GrADS executable using settings given.
@@ -191,9 +211,119 @@ public class GradsTaskModule
 	verbose("verified GrADS executable " + binary.getAbsolutePath());
     }
 	
+    /** Sets up pools of persistent GrADS processes, if enabled by the
+     *  pool_size setting. */
+    protected void configurePools(Setting setting)
+	throws ConfigException {
+
+	int poolSize = (int)setting.getNumAttribute("pool_size", 0);
+	int poolRecycle = (int)setting.getNumAttribute("pool_recycle", 100);
+	if (poolSize <= 0) {
+	    if (verbose()) verbose("GrADS process pool is disabled");
+	    return;
+	}
+
+	File sentinel = new File(scriptDir, "sentinel.gs");
+	if (!sentinel.exists()) {
+	    throw new ConfigException(this, "missing script " + 
+				      sentinel.getAbsolutePath() + 
+				      " required for process pool");
+	}
+
+	// GrADS may buffer its output when writing to a pipe, which
+	// would keep us from seeing the end of a task. stdbuf, where 
+	// available, forces line buffering.
+	File stdbuf = null;
+	for (int i = 0; i < stdbufPaths.length; i++) {
+	    File candidate = new File(stdbufPaths[i]);
+	    if (candidate.exists()) {
+		stdbuf = candidate;
+		break;
+	    }
+	}
+	if (stdbuf == null) {
+	    info("stdbuf not found; pooled GrADS processes " + 
+		 "must flush their own output");
+	}
+
+	Map newPools = new HashMap();
+	File[] binaries = (completeGrads) ? 
+	    gradsBinaries : new File[] { gradsBinary };
+	for (int i = 0; i < binaries.length; i++) {
+	    if (binaries[i] == null) {
+		continue;
+	    }
+	    List cmd = new ArrayList();
+	    if (useNice) {
+		cmd.add("nice");
+	    }
+	    if (stdbuf != null) {
+		cmd.add(stdbuf.getAbsolutePath());
+		cmd.add("-oL");
+	    }
+	    cmd.add(binaries[i].getAbsolutePath());
+	    cmd.add("-bp");
+	    newPools.put(binaries[i].getAbsolutePath(), 
+			 new GradsProcessPool
+			     ((String[])cmd.toArray(new String[0]),
+			      sentinel,
+			      poolSize,
+			      poolRecycle));
+	}
+	pools = newPools;
+	if (verbose()) verbose("GrADS process pool size is " + poolSize + 
+			       "; processes are replaced after " + 
+			       poolRecycle + " tasks");
+    }
+
+    /** Stops the processes in any existing pools */
+    /** Stops handing out tasks from the current pools. The pools are
+     *  closed once the requests that may have created tasks from
+     *  them have finished. */
+    protected void retirePools() {
+	final Map oldPools = pools;
+	pools = null;
+	if (oldPools != null) {
+	    server.retire(new Runnable() {
+		    public void run() {
+			Iterator it = oldPools.values().iterator();
+			while (it.hasNext()) {
+			    ((GradsProcessPool)it.next()).close();
+			}
+		    }
+		});
+	}
+    }
+
+    /** Creates a Task object that will run a GrADS script on behalf
+     *  of a client. The task waits for a slot in the task queue, and
+     *  is counted against the number of slots allowed by the
+     *  privilege's "dods_task_slots" attribute, if it is set.
+     * @see #task(int, String, String[])
+     */
+    public Task task(int gradsBinaryType, String taskName, String[] args,
+		     Privilege privilege)
+	throws ModuleException {
+
+	Task task = task(gradsBinaryType, taskName, args);
+	if (privilege != null) {
+	    int slots = (int)privilege.getNumAttribute("dods_task_slots", 0);
+	    task.setQueue(queue, privilege.getName(), slots);
+	} else {
+	    task.setQueue(queue, null, 0);
+	}
+	return task;
+    }
+
     /** Creates a Task object that will run a GrADS script. The actual
      *  command will be of the form: <code> [nice] <i>grads_binary</i> -bpcx
-     *  "<i>script_dir</i>/<i>task_name</i>.gs <i>args</i>" </code>
+     *  "<i>script_dir</i>/<i>task_name</i>.gs <i>args</i>" </code>.
+     *  If the process pool is enabled, the command <code>run 
+     *  <i>script_dir</i>/<i>task_name</i>.gs <i>args</i></code> is 
+     *  instead sent to a pooled GrADS process.<p>
+     *  Tasks created this way do not wait in the task queue, so that
+     *  imports and updates still run when the server is busy with
+     *  subsets.
      * @param gradsBinaryType Which GrADS binary to run
      * @param taskName The name of the GrADS script to run. The actual
      * filename of the script will be generated by prepending the
@@ -214,21 +344,38 @@ public class GradsTaskModule
 	StringBuffer argBuffer = 
 	    new StringBuffer(scriptFile.getAbsolutePath());
 	for (int i = 0; i < args.length; i++) {
+	    // a pooled process reads commands line by line, so a line
+	    // break in an argument would start a new command
+	    for (int j = 0; j < args[i].length(); j++) {
+		if (Character.isISOControl(args[i].charAt(j))) {
+		    throw new ModuleException(this, "invalid character in " + 
+					      "argument to " + taskName);
+		}
+	    }
 	    argBuffer.append(" ");
 	    argBuffer.append(args[i]);
 	}
 
+	File binary = (completeGrads) ? 
+	    gradsBinaries[gradsBinaryType] : gradsBinary;
+	Map currentPools = pools;
+	if (currentPools != null && 
+	    currentPools.containsKey(binary.getAbsolutePath())) {
+	    GradsProcessPool pool = (GradsProcessPool)
+		currentPools.get(binary.getAbsolutePath());
+	    Task task = pool.task("run " + argBuffer, timeLimit);
+	    if (debug()) log.debug(this, "pooled command for '" + taskName + 
+				   "' task is:\n" + task.getCmd());
+	    return task;
+	}
+
 	int offset = (useNice) ? 1 : 0;
 	String[] cmd = new String[offset + 3];
 	if (useNice) {
 	    cmd[0] = "nice";
 	}
 
-	if (!completeGrads) {
-	    cmd[offset] = gradsBinary.getAbsolutePath();
-	} else {
-	    cmd[offset] = gradsBinaries[gradsBinaryType].getAbsolutePath();
-	}	    
+	cmd[offset] = binary.getAbsolutePath();
 
 	cmd[offset + 1] = "-bpcx";
 	cmd[offset + 2] = argBuffer.toString();
@@ -246,8 +393,31 @@ public class GradsTaskModule
 	return timeLimit;
     }
 
+    /** @return The queue that limits how many GrADS processes run 
+     *  at once */
+    public TaskQueue getQueue() {
+	return queue;
+    }
+
+    /** Returns a summary of the task queue and process pools */
+    public String getStatistics() {
+	StringBuffer sb = new StringBuffer(queue.getStatistics());
+	Map currentPools = pools;
+	if (currentPools != null) {
+	    Iterator it = currentPools.values().iterator();
+	    while (it.hasNext()) {
+		sb.append("\n");
+		sb.append(((GradsProcessPool)it.next()).getStatistics());
+	    }
+	}
+	return sb.toString();
+    }
+
     protected final static String[] binaryNames = { "grads" };
 
+    protected final static String[] stdbufPaths = 
+    { "/usr/bin/stdbuf", "/bin/stdbuf", "/usr/local/bin/stdbuf" };
+
     
     protected boolean completeGrads;
 
@@ -256,6 +426,8 @@ public class GradsTaskModule
     protected File scriptDir;
 
     protected long timeLimit;
+    protected TaskQueue queue;
+    protected volatile Map pools;
 
     protected File gradsBinary;
 
@@ -0,0 +1,345 @@
+/* Copyright (C) 2000-2021 by George Mason University.
+*  Authored by Joe Wielgosz and maintained by Jennifer Adams.
+*  See file COPYRIGHT for more information.
+*/
+package org.iges.grads.server;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+import org.iges.anagram.AnagramException;
+
+/** Works out which data file holds a given time step (and ensemble
+ *  member) of a dataset that uses 'OPTIONS template'. Supports the
+ *  substitutions %x1, %x3, %y2, %y4, %m1, %m2, %mc, %d1, %d2, %h1,
+ *  %h2, %h3, %n2 and %e, and both the standard and 365-day
+ *  calendars.<p>
+ *
+ *  Times in the file name are those of the time axis given by TDEF,
+ *  so the time steps stored in each file are the consecutive steps
+ *  that produce the same file name.
+ */
+public class GradsTemplate
+    implements Serializable {
+
+    /** Parses a template.
+     * @param pattern The DSET entry, with the path already resolved
+     * @param tSize Number of time steps in the dataset
+     * @param tStart Start time from the TDEF entry, e.g. "00z01jan2000"
+     * @param tIncrement Time increment from the TDEF entry, e.g. "6hr"
+     * @param calendar365 True if 'OPTIONS 365_day_calendar' is set
+     * @param ensNames Names of the ensemble members, for %e, or null
+     * @throws AnagramException if the template uses a substitution
+     * that isn't supported, or the time axis can't be parsed
+     */
+    public GradsTemplate(String pattern,
+			 int tSize,
+			 String tStart,
+			 String tIncrement,
+			 boolean calendar365,
+			 List ensNames)
+	throws AnagramException {
+
+	this.pattern = pattern;
+	this.tSize = tSize;
+	this.calendar365 = calendar365;
+	this.ensNames = ensNames;
+	this.start = parseTime(tStart);
+	parseIncrement(tIncrement);
+
+	// check all the substitution codes up front
+	usesEnsemble = false;
+	int i = pattern.indexOf('%');
+	while (i >= 0) {
+	    if (i + 2 > pattern.length()) {
+		throw new AnagramException("incomplete substitution at end " +
+					   "of template " + pattern);
+	    }
+	    String code = pattern.substring(i + 1,
+					    Math.min(i + 3, pattern.length()));
+	    if (code.startsWith("e")) {
+		if (ensNames == null) {
+		    throw new AnagramException("template uses %e but " +
+					       "EDEF gives no names");
+		}
+		usesEnsemble = true;
+		i = pattern.indexOf('%', i + 2);
+		continue;
+	    }
+	    if (CODES.indexOf(" " + code + " ") < 0) {
+		throw new AnagramException("template substitution %" + code +
+					   " is not supported");
+	    }
+	    i = pattern.indexOf('%', i + 3);
+	}
+    }
+
+    /** Returns the name of the file containing time step t, and
+     *  ensemble member e (both zero-based) */
+    public String getFileName(int e, int t) {
+	int[] time = getTime(t);
+	StringBuffer sb = new StringBuffer();
+	int i = 0;
+	while (i < pattern.length()) {
+	    char c = pattern.charAt(i);
+	    if (c != '%') {
+		sb.append(c);
+		i++;
+		continue;
+	    }
+	    if (pattern.charAt(i + 1) == 'e') {
+		sb.append(ensNames.get(e));
+		i += 2;
+		continue;
+	    }
+	    String code = pattern.substring(i + 1, i + 3);
+	    i += 3;
+	    if (code.equals("x1")) {
+		sb.append((time[YEAR] / 10) % 10);
+	    } else if (code.equals("x3")) {
+		pad(sb, (time[YEAR] / 10) % 1000, 3);
+	    } else if (code.equals("y2")) {
+		pad(sb, time[YEAR] % 100, 2);
+	    } else if (code.equals("y4")) {
+		pad(sb, time[YEAR], 4);
+	    } else if (code.equals("m1")) {
+		sb.append(time[MONTH]);
+	    } else if (code.equals("m2")) {
+		pad(sb, time[MONTH], 2);
+	    } else if (code.equals("mc")) {
+		sb.append(MONTH_NAMES[time[MONTH] - 1]);
+	    } else if (code.equals("d1")) {
+		sb.append(time[DAY]);
+	    } else if (code.equals("d2")) {
+		pad(sb, time[DAY], 2);
+	    } else if (code.equals("h1")) {
+		sb.append(time[HOUR]);
+	    } else if (code.equals("h2")) {
+		pad(sb, time[HOUR], 2);
+	    } else if (code.equals("h3")) {
+		pad(sb, time[HOUR], 3);
+	    } else if (code.equals("n2")) {
+		pad(sb, time[MINUTE], 2);
+	    }
+	}
+	return sb.toString();
+    }
+
+    /** Returns the first time step that is in the same file as step t */
+    public int getFirstStep(int t) {
+	return getFileStarts()[t];
+    }
+
+    /** Returns the number of time steps in the file containing step t */
+    public int getStepsInFile(int t) {
+	getFileStarts();
+	return fileSteps[t];
+    }
+
+    /** Returns true if the template has an ensemble substitution, in
+     *  which case each file holds a single ensemble member */
+    public boolean usesEnsemble() {
+	return usesEnsemble;
+    }
+
+    /** Returns the time of step t, as year, month, day, hour, minute */
+    public int[] getTime(int t) {
+	if (incrementMonths > 0) {
+	    long months = (long)start[YEAR] * 12 + (start[MONTH] - 1) +
+		(long)t * incrementMonths;
+	    int[] time = start.clone();
+	    time[YEAR] = (int)(months / 12);
+	    time[MONTH] = (int)(months % 12) + 1;
+	    time[DAY] = Math.min(time[DAY],
+				 daysInMonth(time[YEAR], time[MONTH]));
+	    return time;
+	} else {
+	    return fromMinutes(toMinutes(start) +
+			       (long)t * incrementMinutes);
+	}
+    }
+
+    /** Finds where the file name changes along the time axis. The
+     *  file names only depend on time for this purpose, since the
+     *  ensemble member is the same for all steps in a file. */
+    protected synchronized int[] getFileStarts() {
+	if (fileStarts == null) {
+	    int[] starts = new int[tSize];
+	    String previous = null;
+	    int first = 0;
+	    for (int t = 0; t < tSize; t++) {
+		String name = getFileName(0, t);
+		if (!name.equals(previous)) {
+		    first = t;
+		    previous = name;
+		}
+		starts[t] = first;
+	    }
+	    int[] steps = new int[tSize];
+	    for (int t = tSize - 1; t >= 0; t--) {
+		if (t + 1 < tSize && starts[t + 1] == starts[t]) {
+		    steps[t] = steps[t + 1];
+		} else {
+		    steps[t] = t - starts[t] + 1;
+		}
+	    }
+	    fileSteps = steps;
+	    fileStarts = starts;
+	}
+	return fileStarts;
+    }
+
+    protected void pad(StringBuffer sb, int value, int digits) {
+	String s = String.valueOf(value);
+	for (int i = s.length(); i < digits; i++) {
+	    sb.append('0');
+	}
+	sb.append(s);
+    }
+
+    /** Parses a GrADS absolute time of the form [hh[:mm]z][dd]mmmyyyy */
+    protected int[] parseTime(String s)
+	throws AnagramException {
+
+	Matcher m = TIME_FORMAT.matcher(s.toLowerCase());
+	if (!m.matches()) {
+	    throw new AnagramException("can't parse TDEF start time " + s);
+	}
+	int[] time = new int[5];
+	time[HOUR] = (m.group(1) == null) ? 0 : Integer.parseInt(m.group(1));
+	time[MINUTE] = (m.group(2) == null) ? 0 : Integer.parseInt(m.group(2));
+	time[DAY] = (m.group(3) == null) ? 1 : Integer.parseInt(m.group(3));
+	int month = Arrays.asList(MONTH_NAMES).indexOf(m.group(4));
+	if (month < 0) {
+	    throw new AnagramException("can't parse TDEF start time " + s);
+	}
+	time[MONTH] = month + 1;
+	time[YEAR] = Integer.parseInt(m.group(5));
+	if (m.group(5).length() == 2) {
+	    // same rule GrADS uses for two-digit years
+	    time[YEAR] += (time[YEAR] < 50) ? 2000 : 1900;
+	}
+	return time;
+    }
+
+    /** Parses a GrADS time increment such as 6hr or 1mo */
+    protected void parseIncrement(String s)
+	throws AnagramException {
+
+	Matcher m = INCREMENT_FORMAT.matcher(s.toLowerCase());
+	if (!m.matches()) {
+	    throw new AnagramException("can't parse TDEF increment " + s);
+	}
+	int amount = Integer.parseInt(m.group(1));
+	String unit = m.group(2);
+	if (unit.equals("mn")) {
+	    incrementMinutes = amount;
+	} else if (unit.equals("hr")) {
+	    incrementMinutes = amount * 60L;
+	} else if (unit.equals("dy")) {
+	    incrementMinutes = amount * 1440L;
+	} else if (unit.equals("mo")) {
+	    incrementMonths = amount;
+	} else {
+	    incrementMonths = amount * 12;
+	}
+    }
+
+    protected boolean isLeapYear(int year) {
+	return !calendar365 &&
+	    (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    protected int daysInMonth(int year, int month) {
+	if (month == 2 && isLeapYear(year)) {
+	    return 29;
+	}
+	return DAYS_IN_MONTH[month - 1];
+    }
+
+    /** Converts a time to minutes since the start of year 0 */
+    protected long toMinutes(int[] time) {
+	return toDays(time[YEAR], time[MONTH], time[DAY]) * 1440L +
+	    time[HOUR] * 60 + time[MINUTE];
+    }
+
+    protected int[] fromMinutes(long minutes) {
+	int[] time = new int[5];
+	long days = minutes / 1440;
+	int minuteOfDay = (int)(minutes % 1440);
+	time[HOUR] = minuteOfDay / 60;
+	time[MINUTE] = minuteOfDay % 60;
+	fromDays(days, time);
+	return time;
+    }
+
+    /** Counts days from the start of year 0 */
+    protected long toDays(int year, int month, int day) {
+	long days;
+	if (calendar365) {
+	    days = (long)year * 365;
+	} else {
+	    days = (long)year * 365 + (year + 3) / 4 -
+		(year + 99) / 100 + (year + 399) / 400;
+	}
+	for (int m = 1; m < month; m++) {
+	    days += daysInMonth(year, m);
+	}
+	return days + day - 1;
+    }
+
+    protected void fromDays(long days, int[] time) {
+	int year = (int)(days / ((calendar365) ? 365 : 366));
+	while (toDays(year + 1, 1, 1) <= days) {
+	    year++;
+	}
+	int dayOfYear = (int)(days - toDays(year, 1, 1));
+	int month = 1;
+	while (dayOfYear >= daysInMonth(year, month)) {
+	    dayOfYear -= daysInMonth(year, month);
+	    month++;
+	}
+	time[YEAR] = year;
+	time[MONTH] = month;
+	time[DAY] = dayOfYear + 1;
+    }
+
+    protected static final int YEAR = 0;
+    protected static final int MONTH = 1;
+    protected static final int DAY = 2;
+    protected static final int HOUR = 3;
+    protected static final int MINUTE = 4;
+
+    protected static final String CODES =
+	" x1 x3 y2 y4 m1 m2 mc d1 d2 h1 h2 h3 n2 ";
+
+    protected static final String[] MONTH_NAMES = {
+	"jan", "feb", "mar", "apr", "may", "jun",
+	"jul", "aug", "sep", "oct", "nov", "dec"
+    };
+
+    protected static final int[] DAYS_IN_MONTH = {
+	31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31
+    };
+
+    protected static final Pattern TIME_FORMAT = Pattern.compile
+	("(?:(\\d{1,2})(?::(\\d{1,2}))?z)?(\\d{1,2})?([a-z]{3})(\\d{4}|\\d{2})");
+
+    protected static final Pattern INCREMENT_FORMAT = Pattern.compile
+	("(\\d+)(mn|hr|dy|mo|yr)");
+
+    protected String pattern;
+    protected int tSize;
+    protected boolean calendar365;
+    protected List ensNames;
+    protected boolean usesEnsemble;
+
+    protected int[] start;
+    protected long incrementMinutes;
+    protected int incrementMonths;
+
+    protected transient int[] fileStarts;
+    protected transient int[] fileSteps;
+
+}
@@ -160,6 +160,19 @@ public class GradsTool
 	dods.writeBinaryData(data, ce, privilege, out);
     }
 
+    /** Calculates the length of a binary data subset.
+     *	@param data The data to be accessed
+     *  @param ce A constraint expression specifying the subset
+     * @return The length in bytes, or -1 if it isn't known in advance
+     * @throws ModuleException if the request fails for any reason
+     */
+    public long getBinaryDataLength(DataHandle data,
+				    String ce,
+				    Privilege privilege)
+	throws ModuleException {
+	return dods.getBinaryDataLength(data, ce, privilege);
+    }
+
     /** Writes a data subset to a stream in ASCII format.
      *	@param data The data to be accessed
      *  @param ce A constraint expression specifying the subset to be sent
@@ -181,6 +194,12 @@ public class GradsTool
 	return task;
     }
 
+    /** Reports the state of the GrADS task queue and process pools,
+     *  and of the mapped file cache. */
+    public String getStatistics() {
+	return task.getStatistics() + "\n" + dods.getStatistics();
+    }
+
 
     protected GradsUpdateModule updater;
     protected GradsAnalysisModule analyzer;
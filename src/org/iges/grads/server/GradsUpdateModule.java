@@ -5,13 +5,32 @@
 package org.iges.grads.server;
 
 import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.iges.anagram.*;
 
 /** Updates a data handle to be in synch with the actual data
  *  source. This provides a quick way for the Catalog to check for
- *  changes to the back-end data store. 
+ *  changes to the back-end data store. <p>
  *
+ *  How often the data files are checked is set by the "check"
+ *  attribute:
+ *  <ul>
+ *  <li>"always" (the default) checks the files on every request
+ *  <li>"ttl" checks them, at most once every "check_interval" seconds
+ *  (default 60), on a background thread. This suits network
+ *  filesystems, where each check is a round trip to the file server.
+ *  <li>"watch" asks the operating system to report changes to the
+ *  directories containing the files, and checks a dataset's files on
+ *  a background thread only when they may have changed. If
+ *  check_interval is set, the files are also checked that often, in
+ *  case a change is missed. This suits local filesystems.
+ *  </ul>
+ *  With "ttl" and "watch", a request never waits on the filesystem;
+ *  it may see the previous version of a dataset for a short time
+ *  after the files change.
  */
 public class GradsUpdateModule
     extends AbstractModule {
@@ -28,7 +47,66 @@ public class GradsUpdateModule
 
     public void configure(Setting setting)
 	throws ConfigException {
-					      
+
+	String check = setting.getAttribute("check", "always");
+	int newPolicy;
+	if (check.equals("always")) {
+	    newPolicy = ALWAYS;
+	} else if (check.equals("ttl")) {
+	    newPolicy = TTL;
+	} else if (check.equals("watch")) {
+	    newPolicy = WATCH;
+	} else {
+	    throw new ConfigException(this, "invalid value for check: " + 
+				      check, setting);
+	}
+	long defaultInterval = (newPolicy == TTL) ? 60 : 0;
+	checkInterval = 
+	    setting.getNumAttribute("check_interval", defaultInterval) * 1000;
+
+	synchronized (this) {
+	    if (newPolicy == WATCH && watcher == null) {
+		try {
+		    watcher = FileSystems.getDefault().newWatchService();
+		} catch (IOException ioe) {
+		    throw new ConfigException(this, "can't watch for file " + 
+					      "changes; " + ioe.getMessage(),
+					      setting);
+		}
+		Thread watchThread = new Thread("grads-watcher") {
+			public void run() {
+			    watch();
+			}
+		    };
+		watchThread.setDaemon(true);
+		watchThread.start();
+	    } else if (newPolicy != WATCH && watcher != null) {
+		try {
+		    watcher.close();
+		} catch (IOException ioe) {}
+		watcher = null;
+		watchedDirs.clear();
+	    }
+	    if (newPolicy != ALWAYS && refresher == null) {
+		refresher = new Thread("grads-refresher") {
+			public void run() {
+			    refresh();
+			}
+		    };
+		refresher.setDaemon(true);
+		refresher.start();
+	    }
+	    // datasets will be registered again under the new policy
+	    states.clear();
+	    policy = newPolicy;
+	}
+
+	if (verbose()) {
+	    verbose("data files will be checked for changes " + 
+		    ((policy == ALWAYS) ? "on every request" :
+		     (policy == TTL) ? "every " + (checkInterval / 1000) + 
+		     " sec" : "when they are modified"));
+	}
     }
 
     /** Checks if the DataHandle provided is out of date and updates
@@ -42,6 +120,30 @@ public class GradsUpdateModule
     public boolean doUpdate(DataHandle data) 
 	throws ModuleException {
 
+	if (policy == ALWAYS || Thread.currentThread() == refresher) {
+	    return checkFiles(data);
+	}
+
+	// only in-memory state is consulted here; any file checks 
+	// happen on the refresher thread
+	Freshness state = (Freshness)states.get(data.getCompleteName());
+	if (state == null || state.info != data.getToolInfo()) {
+	    state = register(data);
+	}
+	long now = System.currentTimeMillis();
+	if ((checkInterval > 0 && now - state.checked > checkInterval) ||
+	    !data.isAvailable()) {
+	    state.checked = now;
+	    markDirty(data.getCompleteName());
+	}
+	return false;
+    }
+
+    /** Does the actual work of doUpdate(), by checking the
+     *  modification times of the dataset's files. */
+    protected boolean checkFiles(DataHandle data) 
+	throws ModuleException {
+
 	GradsDataInfo info = (GradsDataInfo)data.getToolInfo();
 	
 	File descriptorFile = info.getDescriptorFile();
@@ -88,6 +190,160 @@ public class GradsUpdateModule
 	return !file.exists() || file.lastModified() > createTime;
     }
 
+    /** Starts tracking a dataset that has not been seen under the
+     *  current policy, or whose files may have changed names */
+    protected Freshness register(DataHandle data) {
+	Freshness state = new Freshness();
+	state.info = data.getToolInfo();
+	state.checked = System.currentTimeMillis();
+	states.put(data.getCompleteName(), state);
+
+	if (policy == WATCH) {
+	    GradsDataInfo info = (GradsDataInfo)state.info;
+	    watch(info.getSourceFile(), data.getCompleteName());
+	    watch(info.getDescriptorFile(), data.getCompleteName());
+	    watch(info.getUserDAS(), data.getCompleteName());
+	}
+	return state;
+    }
+
+    /** Adds a file to the set of files watched for changes on behalf
+     *  of a dataset */
+    protected synchronized void watch(File file, String name) {
+	if (file == null || watcher == null) {
+	    return;
+	}
+	Path path = file.getAbsoluteFile().toPath();
+	Path dir = path.getParent();
+	Map files = (Map)watchedDirs.get(dir);
+	if (files == null) {
+	    try {
+		dir.register(watcher,
+			     StandardWatchEventKinds.ENTRY_CREATE,
+			     StandardWatchEventKinds.ENTRY_DELETE,
+			     StandardWatchEventKinds.ENTRY_MODIFY);
+	    } catch (IOException ioe) {
+		error("can't watch directory " + dir + " for changes; " + 
+		      ioe.getMessage());
+		return;
+	    }
+	    files = new HashMap();
+	    watchedDirs.put(dir, files);
+	}
+	String fileName = path.getFileName().toString();
+	Set names = (Set)files.get(fileName);
+	if (names == null) {
+	    names = new HashSet();
+	    files.put(fileName, names);
+	}
+	names.add(name);
+    }
+
+    /** Runs on the watcher thread, marking datasets dirty when the
+     *  operating system reports a change to one of their files */
+    protected void watch() {
+	while (true) {
+	    WatchService currentWatcher;
+	    synchronized (this) {
+		currentWatcher = watcher;
+	    }
+	    if (currentWatcher == null) {
+		return;
+	    }
+	    WatchKey key;
+	    try {
+		key = currentWatcher.take();
+	    } catch (ClosedWatchServiceException cwse) {
+		return;
+	    } catch (InterruptedException ie) {
+		continue;
+	    }
+
+	    Path dir = (Path)key.watchable();
+	    Set dirty = new HashSet();
+	    synchronized (this) {
+		Map files = (Map)watchedDirs.get(dir);
+		if (files != null) {
+		    Iterator it = key.pollEvents().iterator();
+		    while (it.hasNext()) {
+			WatchEvent event = (WatchEvent)it.next();
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+			    // events were lost, so anything may have changed
+			    Iterator all = files.values().iterator();
+			    while (all.hasNext()) {
+				dirty.addAll((Set)all.next());
+			    }
+			} else {
+			    Set names = (Set)files.get
+				(event.context().toString());
+			    if (names != null) {
+				dirty.addAll(names);
+			    }
+			}
+		    }
+		}
+	    }
+	    if (!key.reset()) {
+		// directory is gone; datasets must be registered again
+		synchronized (this) {
+		    Map files = (Map)watchedDirs.remove(dir);
+		    if (files != null) {
+			Iterator all = files.values().iterator();
+			while (all.hasNext()) {
+			    dirty.addAll((Set)all.next());
+			}
+		    }
+		}
+	    }
+
+	    Iterator it = dirty.iterator();
+	    while (it.hasNext()) {
+		String name = (String)it.next();
+		if (debug()) debug("files for " + name + " have changed");
+		markDirty(name);
+	    }
+	}
+    }
+
+    /** Queues a dataset to be checked by the refresher thread */
+    protected void markDirty(String name) {
+	synchronized (dirtyNames) {
+	    if (dirtyNames.add(name)) {
+		dirtyNames.notify();
+	    }
+	}
+    }
+
+    /** Runs on the refresher thread, checking datasets that may have
+     *  changed. The dataset is retrieved from the catalog just as for
+     *  a request, so the catalog calls doUpdate() (on this thread) and
+     *  takes care of any temporary entries that depend on it.
+     */
+    protected void refresh() {
+	while (true) {
+	    String name;
+	    synchronized (dirtyNames) {
+		while (dirtyNames.isEmpty()) {
+		    try {
+			dirtyNames.wait();
+		    } catch (InterruptedException ie) {}
+		}
+		Iterator it = dirtyNames.iterator();
+		name = (String)it.next();
+		it.remove();
+	    }
+	    if (debug()) debug("checking " + name + " for changes");
+	    try {
+		Handle handle = server.getCatalog().getLocked(name);
+		if (handle != null) {
+		    handle.getSynch().release();
+		}
+	    } catch (RuntimeException re) {
+		error("check of dataset " + name + " failed; " + re);
+	    }
+	}
+    }
+
     /** Brings internal structures in a DataHandle up-to-date with
      *  respect to the data files. There is redundancy here with
      *  respect to the code in GradsImportModule, which indicates that
@@ -135,6 +391,7 @@ public class GradsUpdateModule
 				  oldInfo.getFormat());
 	    data.setDescription(newInfo.getTitle());
 	    data.setToolInfo(newInfo);
+	    tool.dods.invalidateSubsets(data.getCompleteName());
 
 	    data.setAvailable(true);
 
@@ -146,6 +403,25 @@ public class GradsUpdateModule
 	}
     }
 
+    /** What doUpdate() knows about a dataset between checks */
+    protected static class Freshness {
+	protected Object info;
+	protected volatile long checked;
+    }
+
+    protected final static int ALWAYS = 0;
+    protected final static int TTL = 1;
+    protected final static int WATCH = 2;
+
+    protected volatile int policy = ALWAYS;
+    protected volatile long checkInterval;
+
+    protected Map states = new ConcurrentHashMap();
+    protected Set dirtyNames = new LinkedHashSet();
+
+    protected WatchService watcher;
+    protected Map watchedDirs = new HashMap();
+    protected volatile Thread refresher;
 
 
 }
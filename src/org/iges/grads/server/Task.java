@@ -5,6 +5,8 @@
 package org.iges.grads.server;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import org.iges.anagram.AnagramException;
 
@@ -24,29 +26,76 @@ public class Task {
 	this.output = new StringBuffer();
     }
 
+    /** Sets the queue that this task must obtain a slot from before
+     *  it starts its process.
+     * @param group The group that the task is counted against, or null
+     * @param groupLimit Maximum number of slots for the group, or 0 for 
+     * no limit
+     */
+    public void setQueue(TaskQueue queue, String group, int groupLimit) {
+	this.queue = queue;
+	this.group = group;
+	this.groupLimit = groupLimit;
+    }
+
     /** Executes the external process, returning when it is finished
      *  or when it exceeds the time limit specified in the constructor.
+     *  If a queue has been set, waits for a slot first; the time limit
+     *  does not include the time spent waiting.
      * @throws AnagramException If the process fails, or if the 
-     * output parser finds an error message in the output.
+     * output parser finds an error message in the output, or if no
+     * slot becomes available.
      */
     public void run() 
 	throws AnagramException {
 
+	if (queue != null) {
+	    queue.acquire(group, groupLimit);
+	}
 	try {
-	    long startTime = System.currentTimeMillis();
-	    Process process = Runtime.getRuntime().exec(cmd, env, workDir);
-	    if (process == null) {
-		throw new AnagramException ("creation of child process " +
-					    "failed for unknown reasons\n" +
-					    "command: " + cmdString);
+	    execute();
+	} finally {
+	    if (queue != null) {
+		queue.release(group);
 	    }
+	}
+    }
 
-	    finish(process, startTime);
+    /** Starts the external process and waits for it to finish. Called
+     *  by run() once a slot has been obtained.
+     */
+    protected void execute() 
+	throws AnagramException {
+
+	ProcessBuilder builder = new ProcessBuilder(cmd);
+	if (env != null) {
+	    // same semantics as Runtime.exec(): env replaces the
+	    // inherited environment entirely
+	    Map environment = builder.environment();
+	    environment.clear();
+	    for (int i = 0; i < env.length; i++) {
+		int equals = env[i].indexOf('=');
+		if (equals > 0) {
+		    environment.put(env[i].substring(0, equals),
+				    env[i].substring(equals + 1));
+		}
+	    }
+	}
+	builder.directory(workDir);
+	// GrADS error messages go to the same place as everything else,
+	// and a full stderr pipe can't stall the process
+	builder.redirectErrorStream(true);
 
+	long startTime = System.currentTimeMillis();
+	Process process;
+	try {
+	    process = builder.start();
 	} catch (IOException ioe) {
 	    throw new AnagramException ("creation of child process failed\n" + 
 					"command: " + cmdString, ioe);
 	}
+
+	finish(process, startTime);
     }
 
     /** Executes the external process, returning when it is finished
@@ -88,70 +137,99 @@ public class Task {
     }
 
     /** Waits for a running process to complete (or time out), and
-     *  then performs cleanup and error-handling tasks.
+     *  then performs cleanup and error-handling tasks. Output is
+     *  collected by a separate thread as it arrives, so this returns
+     *  as soon as the process exits.
      */
     protected void finish(Process process, long startTime) 
 	throws AnagramException {
-	
-	BufferedReader stream 
-	    = new BufferedReader
-		(new InputStreamReader
-		    (process.getInputStream()));
-	
-	char[] buffer = new char[1024];
-	
-	// wait in 10ms increments for the script to complete
-	while (true) {
-	    try {
-		// check if process finished
-		process.exitValue(); 
 
-		// if we're still here it did
-		break;
+	OutputReader reader = new OutputReader(process.getInputStream());
+	reader.start();
 
-	    } catch (IllegalThreadStateException itse) {
-		// not finished yet
-		try {
-		    Thread.currentThread().sleep(10);
-		} catch (InterruptedException ie) {}
+	boolean interrupted = false;
+	try {
+	    while (true) {
+		long remaining = timeLimit - 
+		    (System.currentTimeMillis() - startTime);
 		try {
-		    // check for new output
-		    if (stream.ready()) {
-			int charsRead = stream.read(buffer);
-			output.append(buffer, 0, charsRead);
+		    if (remaining > 0 && 
+			process.waitFor(remaining, TimeUnit.MILLISECONDS)) {
+			break;
 		    }
-		} catch (IOException ioe) {}
-		
-		// check for timeout
-		long endTime = System.currentTimeMillis();
-		if (endTime - startTime > timeLimit) {
-		    try {
-			stream.close();
-		    } catch (IOException ioe) {}
-		    process.destroy();
-		    throw new AnagramException
-			("process exceeded time limit of " +
-			 (timeLimit / 1000)
-			 + " sec");
+		    if (System.currentTimeMillis() - startTime >= timeLimit) {
+			process.destroy();
+			throw new AnagramException
+			    ("process exceeded time limit of " +
+			     (timeLimit / 1000)
+			     + " sec");
+		    }
+		} catch (InterruptedException ie) {
+		    interrupted = true;
 		}
 	    }
 
-	}
+	    // the process has exited, so the reader will see the end of
+	    // the stream once it has copied any remaining output. (Unless
+	    // the process left a child running with the pipe open, in
+	    // which case we give up waiting after a short time.)
+	    try {
+		reader.join(READER_JOIN_TIME);
+	    } catch (InterruptedException ie) {
+		interrupted = true;
+	    }
 
-	// read remaining output from completed process
-	try {
-	    while (stream.ready()) {
-		int charsRead = stream.read(buffer);
-		output.append(buffer, 0, charsRead);
+	} finally {
+	    if (interrupted) {
+		Thread.currentThread().interrupt();
 	    }
-	} catch (IOException ioe) {}
+	    try {
+		process.getInputStream().close();
+	    } catch (IOException ioe) {}
+	}
 
 	checkErrors();
-	
-	try {
-	    stream.close();	
-	} catch (IOException ioe) {}
-	
+
+	if (reader.truncated) {
+	    throw new AnagramException("process output exceeded " + 
+				       outputLimit + " characters");
+	}
+    }
+
+    /** Copies process output into the output buffer, up to the output
+     *  limit. Output past the limit is read and discarded, so that the
+     *  process is never blocked on a full pipe. */
+    protected class OutputReader
+	extends Thread {
+
+	protected OutputReader(InputStream stream) {
+	    super("task-reader");
+	    setDaemon(true);
+	    this.stream = new InputStreamReader(stream);
+	}
+
+	public void run() {
+	    char[] buffer = new char[4096];
+	    try {
+		int charsRead;
+		while ((charsRead = stream.read(buffer)) >= 0) {
+		    int room = outputLimit - output.length();
+		    if (charsRead > room) {
+			truncated = true;
+			charsRead = Math.max(room, 0);
+		    }
+		    output.append(buffer, 0, charsRead);
+		}
+	    } catch (IOException ioe) {
+	    } finally {
+		try {
+		    stream.close();
+		} catch (IOException ioe) {}
+	    }
+	}
+
+	protected Reader stream;
+	protected volatile boolean truncated;
     }
 
     /** Parses output looking for error messages, defined as lines
@@ -185,10 +263,22 @@ public class Task {
      * that an error has occurred in their processing. */
     protected static String ERROR_INDICATOR = "error: ";
 
+    /** Maximum number of characters of output kept from a process */
+    protected static int DEFAULT_OUTPUT_LIMIT = 16 * 1024 * 1024;
+
+    /** Time in milliseconds to wait for the last of a process's output
+     *  after it exits */
+    protected static long READER_JOIN_TIME = 5000;
+
     protected StringBuffer output;
     protected String cmdString;
     protected String[] cmd;
     protected String[] env;
     protected File workDir;
     protected long timeLimit;
+    protected int outputLimit = DEFAULT_OUTPUT_LIMIT;
+
+    protected TaskQueue queue;
+    protected String group;
+    protected int groupLimit;
 }
@@ -0,0 +1,164 @@
+/* Copyright (C) 2000-2021 by George Mason University.
+*  Authored by Joe Wielgosz and maintained by Jennifer Adams.
+*  See file COPYRIGHT for more information.
+*/
+package org.iges.grads.server;
+
+import java.util.*;
+
+import org.iges.anagram.AnagramException;
+
+/** Limits the number of external processes that may run at once.
+ *  Each Task obtains a slot before it starts its process and gives
+ *  it back when the process is finished. Tasks that can't get a slot
+ *  wait in first-come, first-served order, up to a time limit.<p>
+ *
+ *  Tasks may also belong to a group (in practice, a privilege set)
+ *  which is only allowed a certain number of slots. A task that is
+ *  waiting because its group is at its limit does not hold up tasks
+ *  from other groups that are queued behind it.
+ */
+public class TaskQueue {
+
+    /** Creates a new queue with the given limits.
+     * @param maxTasks Maximum number of tasks that can run at once
+     * @param waitLimit Maximum time in milliseconds that a task may
+     * wait for a slot
+     */
+    public TaskQueue(int maxTasks, long waitLimit) {
+	this.waiting = new LinkedList();
+	this.groupRunning = new HashMap();
+	setLimits(maxTasks, waitLimit);
+    }
+
+    /** Changes the limits for this queue. Tasks that are already
+     *  running are not affected. */
+    public synchronized void setLimits(int maxTasks, long waitLimit) {
+	this.maxTasks = Math.max(maxTasks, 1);
+	this.waitLimit = waitLimit;
+	notifyAll();
+    }
+
+    /** Waits until a slot is available for a task in the group given.
+     * @param group The group the task belongs to, or null for none
+     * @param groupLimit Maximum number of slots that tasks in this group
+     * may hold at once, or 0 for no limit
+     * @throws AnagramException if no slot becomes available within the
+     * time limit
+     */
+    public synchronized void acquire(String group, int groupLimit)
+	throws AnagramException {
+
+	Waiter waiter = new Waiter(group, groupLimit);
+	waiting.addLast(waiter);
+	if (waiting.size() > maxWaiting) {
+	    maxWaiting = waiting.size();
+	}
+
+	long start = System.currentTimeMillis();
+	try {
+	    while (!canRun(waiter)) {
+		long remaining = waitLimit -
+		    (System.currentTimeMillis() - start);
+		if (remaining <= 0) {
+		    timeouts++;
+		    throw new AnagramException
+			("server is experiencing heavy load. " +
+			 "please try again later.");
+		}
+		try {
+		    wait(remaining);
+		} catch (InterruptedException ie) {}
+	    }
+	} finally {
+	    waiting.remove(waiter);
+	    // a task behind this one may now be at the head of the line
+	    notifyAll();
+	}
+
+	running++;
+	started++;
+	totalWait += System.currentTimeMillis() - start;
+	if (group != null) {
+	    groupRunning.put(group, Integer.valueOf(getRunning(group) + 1));
+	}
+    }
+
+    /** Frees a slot obtained with acquire() */
+    public synchronized void release(String group) {
+	running--;
+	if (group != null) {
+	    int count = getRunning(group) - 1;
+	    if (count > 0) {
+		groupRunning.put(group, Integer.valueOf(count));
+	    } else {
+		groupRunning.remove(group);
+	    }
+	}
+	notifyAll();
+    }
+
+    /** Returns the maximum number of tasks that can run at once */
+    public synchronized int getMaxTasks() {
+	return maxTasks;
+    }
+
+    /** Returns a one-line summary of the queue's activity */
+    public synchronized String getStatistics() {
+	return "tasks: " + running + " running (limit " + maxTasks + "), " +
+	    waiting.size() + " waiting (max " + maxWaiting + "), " +
+	    started + " started, " +
+	    ((started > 0) ? totalWait / started : 0) + "ms average wait, " +
+	    timeouts + " timed out";
+    }
+
+    /** A task can run if there is a free slot, its group is under its
+     *  limit, and every task ahead of it in line is waiting on its own
+     *  group limit. */
+    protected boolean canRun(Waiter waiter) {
+	if (running >= maxTasks) {
+	    return false;
+	}
+	Iterator it = waiting.iterator();
+	while (it.hasNext()) {
+	    Waiter current = (Waiter)it.next();
+	    boolean groupFull = current.group != null &&
+		current.groupLimit > 0 &&
+		getRunning(current.group) >= current.groupLimit;
+	    if (current == waiter) {
+		return !groupFull;
+	    }
+	    if (!groupFull) {
+		return false;
+	    }
+	}
+	return false;
+    }
+
+    protected int getRunning(String group) {
+	Integer count = (Integer)groupRunning.get(group);
+	return (count == null) ? 0 : count.intValue();
+    }
+
+    protected static class Waiter {
+	protected Waiter(String group, int groupLimit) {
+	    this.group = group;
+	    this.groupLimit = groupLimit;
+	}
+	protected String group;
+	protected int groupLimit;
+    }
+
+    protected LinkedList waiting;
+    protected Map groupRunning;
+
+    protected int maxTasks;
+    protected long waitLimit;
+
+    protected int running;
+    protected int maxWaiting;
+    protected long started;
+    protected long totalWait;
+    protected long timeouts;
+
+}
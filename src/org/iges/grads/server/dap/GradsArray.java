@@ -53,10 +53,38 @@ public class GradsArray
     }
 
     /** Translates dimension information stored in this object into a 
-     *  Bounds.Grid object for the Dataset.getSubset() method.
+     *  Bounds.Grid object for the Dataset.getSubset() method,
+     *  including the strides of the constraint.
      */ 
     public Bounds.Grid calculateBounds() {
 
+	Bounds.Grid bounds = calculateRanges();
+	long xStride = 1, yStride = 1, zStride = 1, tStride = 1, eStride = 1;
+	try {
+	    for (int i = 0; i < numDimensions(); i++) {
+		DArrayDimension dim = getDimension(i);
+		if (dim.getName().equals("lon")) {
+		    xStride = dim.getStride();
+		} else if (dim.getName().equals("lat")) {
+		    yStride = dim.getStride();
+		} else if (dim.getName().equals("lev")) {
+		    zStride = dim.getStride();
+		} else if (dim.getName().equals("time")) {
+		    tStride = dim.getStride();
+		} else if (dim.getName().equals("ens")) {
+		    eStride = dim.getStride();
+		}
+	    }
+	} catch (InvalidParameterException ipe) {
+	    throw new RuntimeException("internal dimension mismatch!");
+	}
+	bounds.setStrides(xStride, yStride, zStride, tStride, eStride);
+	return bounds;
+    }
+
+    /** Returns the ranges of the constraint, without strides */
+    protected Bounds.Grid calculateRanges() {
+
 	try {
 	    // Calculate dimensions of grid
 	    if (numDimensions() == 5) {
@@ -0,0 +1,346 @@
+/* Copyright (C) 2000-2021 by George Mason University.
+*  Authored by Joe Wielgosz and maintained by Jennifer Adams.
+*  See file COPYRIGHT for more information.
+*/
+package org.iges.util;
+
+import java.io.*;
+
+/** Writes text and numbers as ASCII, producing exactly the same bytes
+ *  as the print() and println() methods of java.io.PrintStream. The
+ *  text is collected in a buffer and written in large blocks, and
+ *  floats and ints are formatted directly into the buffer, without
+ *  creating a String for each value. <p>
+ *
+ *  A float is written as the shortest decimal that reads back as the
+ *  same float, which is what Float.toString() produces for almost all
+ *  values. Values for which Float.toString() may give more digits
+ *  (denormals, very large or small powers of two, and some whole
+ *  numbers of 10^7 or more) are formatted with Float.toString()
+ *  instead, as are doubles.
+ */
+public class AsciiOutputStream
+    extends FilterOutputStream {
+
+    /** Creates a stream with a buffer of the default size */
+    public AsciiOutputStream(OutputStream out) {
+	this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    /** Creates a stream with a buffer of the size given */
+    public AsciiOutputStream(OutputStream out, int bufferSize) {
+	super(out);
+	this.buffer = new byte[Math.max(bufferSize, MIN_BUFFER_SIZE)];
+	this.count = 0;
+    }
+
+    public void print(String s)
+	throws IOException {
+
+	int length = s.length();
+	for (int i = 0; i < length; i++) {
+	    if (s.charAt(i) >= 0x80) {
+		// not ASCII, so use the platform encoding as PrintStream does
+		write(s.getBytes());
+		return;
+	    }
+	}
+	int pos = 0;
+	while (pos < length) {
+	    if (count == buffer.length) {
+		flushBuffer();
+	    }
+	    int chunk = Math.min(length - pos, buffer.length - count);
+	    for (int i = 0; i < chunk; i++) {
+		buffer[count++] = (byte)s.charAt(pos++);
+	    }
+	}
+    }
+
+    public void print(int i)
+	throws IOException {
+
+	reserve(MAX_NUMBER_LENGTH);
+	long value = i;
+	if (value < 0) {
+	    buffer[count++] = '-';
+	    value = -value;
+	}
+	count = putDigits(value, buffer, count);
+    }
+
+    public void print(double d)
+	throws IOException {
+	print(Double.toString(d));
+    }
+
+    public void print(float f)
+	throws IOException {
+
+	int bits = Float.floatToRawIntBits(f);
+	int exponent = (bits >>> 23) & 0xff;
+	int fraction = bits & 0x7fffff;
+	if (exponent == 0 && fraction == 0) {
+	    print((bits < 0) ? "-0.0" : "0.0");
+	    return;
+	}
+	if (exponent == 0 || exponent == 0xff ||
+	    (fraction == 0 &&
+	     (exponent < MIN_EXACT_POWER || exponent > MAX_EXACT_POWER))) {
+	    // denormal, infinite, NaN, or a power of two whose exact
+	    // value has too many digits
+	    print(Float.toString(f));
+	    return;
+	}
+
+	float magnitude = Math.abs(f);
+	double v = magnitude;
+	int e10 = (int)Math.floor(Math.log10(v));
+	if (power(e10) > v) {
+	    e10--;
+	} else if (power(e10 + 1) <= v) {
+	    e10++;
+	}
+
+	// find the fewest significant digits that read back as the
+	// same float. Exact ties are rounded to even, as
+	// Float.toString() does. Scaling by a power of ten is usually
+	// inexact, so a value that is nearly halfway between two
+	// candidates can only be rounded here if the scaling is exact.
+	int significantBits = 24 - Integer.numberOfTrailingZeros(fraction | 0x800000);
+	long digits = 0;
+	int length = 0;
+	for (int n = 1; n <= MAX_FLOAT_DIGITS; n++) {
+	    int shift = n - 1 - e10;
+	    double scaled = scale(v, shift);
+	    double half = scaled - Math.floor(scaled) - 0.5;
+	    if (Math.abs(half) < TIE_MARGIN &&
+		(half != 0 || shift < 0 || shift >= FIVE_BITS.length ||
+		 significantBits + FIVE_BITS[shift] > 53)) {
+		print(Float.toString(f));
+		return;
+	    }
+	    long candidate = (long)Math.rint(scaled);
+	    if ((float)scale(candidate, -shift) == magnitude) {
+		digits = candidate;
+		length = n;
+		break;
+	    }
+	}
+	if (length == 0) {
+	    print(Float.toString(f));
+	    return;
+	}
+	if (digits >= (long)power(length)) {
+	    // rounded up to the next power of ten
+	    digits /= 10;
+	    e10++;
+	}
+	while (length > 1 && digits % 10 == 0) {
+	    digits /= 10;
+	    length--;
+	}
+
+	if (v >= 1e7 && v == Math.floor(v)) {
+	    // Float.toString() writes out all the digits of a whole
+	    // number that fits in a long, so the shortest form can only
+	    // be used if it has the same digits
+	    if (v >= Long.MAX_VALUE) {
+		print(Float.toString(f));
+		return;
+	    }
+	    long whole = (long)v;
+	    int wholeLength = digitCount(whole);
+	    while (whole % 10 == 0) {
+		whole /= 10;
+		wholeLength--;
+	    }
+	    if (whole != digits || wholeLength != length) {
+		print(Float.toString(f));
+		return;
+	    }
+	}
+
+	reserve(MAX_NUMBER_LENGTH);
+	if (bits < 0) {
+	    buffer[count++] = '-';
+	}
+	putDigits(digits, digitBuffer, 0);
+	if (e10 >= -3 && e10 < 7) {
+	    if (e10 >= 0) {
+		for (int i = 0; i <= e10; i++) {
+		    buffer[count++] = (i < length) ? digitBuffer[i] : (byte)'0';
+		}
+		buffer[count++] = '.';
+		if (length > e10 + 1) {
+		    for (int i = e10 + 1; i < length; i++) {
+			buffer[count++] = digitBuffer[i];
+		    }
+		} else {
+		    buffer[count++] = '0';
+		}
+	    } else {
+		buffer[count++] = '0';
+		buffer[count++] = '.';
+		for (int i = -1; i > e10; i--) {
+		    buffer[count++] = '0';
+		}
+		for (int i = 0; i < length; i++) {
+		    buffer[count++] = digitBuffer[i];
+		}
+	    }
+	} else {
+	    buffer[count++] = digitBuffer[0];
+	    buffer[count++] = '.';
+	    if (length > 1) {
+		for (int i = 1; i < length; i++) {
+		    buffer[count++] = digitBuffer[i];
+		}
+	    } else {
+		buffer[count++] = '0';
+	    }
+	    buffer[count++] = 'E';
+	    if (e10 < 0) {
+		buffer[count++] = '-';
+		e10 = -e10;
+	    }
+	    count = putDigits(e10, buffer, count);
+	}
+    }
+
+    /** Writes the platform line separator, as PrintStream does */
+    public void println()
+	throws IOException {
+	print(LINE_SEPARATOR);
+    }
+
+    public void write(int b)
+	throws IOException {
+
+	if (count == buffer.length) {
+	    flushBuffer();
+	}
+	buffer[count++] = (byte)b;
+    }
+
+    public void write(byte[] b, int off, int len)
+	throws IOException {
+
+	if (len >= buffer.length) {
+	    flushBuffer();
+	    out.write(b, off, len);
+	    return;
+	}
+	if (len > buffer.length - count) {
+	    flushBuffer();
+	}
+	System.arraycopy(b, off, buffer, count, len);
+	count += len;
+    }
+
+    /** Writes the buffered text to the underlying stream, without
+     *  flushing the underlying stream itself */
+    public void flushBuffer()
+	throws IOException {
+
+	if (count > 0) {
+	    out.write(buffer, 0, count);
+	    count = 0;
+	}
+    }
+
+    public void flush()
+	throws IOException {
+	flushBuffer();
+	out.flush();
+    }
+
+    /** Makes sure there is room in the buffer for the number of bytes
+     *  given */
+    protected void reserve(int length)
+	throws IOException {
+	if (buffer.length - count < length) {
+	    flushBuffer();
+	}
+    }
+
+    /** Writes the decimal digits of a non-negative number into the
+     *  array given.
+     * @return The position after the last digit
+     */
+    protected static int putDigits(long value, byte[] b, int pos) {
+	int end = pos + digitCount(value);
+	for (int i = end - 1; i >= pos; i--) {
+	    b[i] = (byte)('0' + (value % 10));
+	    value /= 10;
+	}
+	return end;
+    }
+
+    protected static int digitCount(long value) {
+	int length = 1;
+	while (value >= 10) {
+	    value /= 10;
+	    length++;
+	}
+	return length;
+    }
+
+    /** Multiplies by 10^exponent, dividing for negative exponents
+     *  since negative powers of ten can't be stored exactly */
+    protected static double scale(double value, int exponent) {
+	return (exponent >= 0) ?
+	    value * POWERS[exponent] : value / POWERS[-exponent];
+    }
+
+    protected static double power(int exponent) {
+	return scale(1, exponent);
+    }
+
+    /** The most significant digits Float.toString() may need */
+    protected static final int MAX_FLOAT_DIGITS = 9;
+
+    /** Biased exponents of the powers of two from 2^-10 to 2^23,
+     *  which Float.toString() writes exactly */
+    protected static final int MIN_EXACT_POWER = 117;
+    protected static final int MAX_EXACT_POWER = 150;
+
+    /** How close to halfway between two integers a scaled value must
+     *  be for the rounding to be in doubt. This is well above the
+     *  error in scaling values of up to 10^9. */
+    protected static final double TIE_MARGIN = 1e-6;
+
+    /** Longest number written by print(float) or print(int) */
+    protected static final int MAX_NUMBER_LENGTH = 24;
+
+    protected static final int DEFAULT_BUFFER_SIZE = 65536;
+    protected static final int MIN_BUFFER_SIZE = 64;
+
+    protected static final String LINE_SEPARATOR =
+	System.getProperty("line.separator");
+
+    /** Powers of ten, to cover the range of the float type plus the
+     *  number of digits it may need */
+    protected static final double[] POWERS = new double[64];
+    static {
+	for (int i = 0; i < POWERS.length; i++) {
+	    POWERS[i] = Double.parseDouble("1e" + i);
+	}
+    }
+
+    /** Number of significant bits in 5^n, for the powers of ten
+     *  that can be stored exactly */
+    protected static final int[] FIVE_BITS = new int[23];
+    static {
+	long five = 1;
+	for (int i = 0; i < FIVE_BITS.length; i++) {
+	    FIVE_BITS[i] = 64 - Long.numberOfLeadingZeros(five);
+	    five *= 5;
+	}
+    }
+
+    protected byte[] buffer;
+    protected int count;
+    protected byte[] digitBuffer = new byte[MAX_NUMBER_LENGTH];
+
+}
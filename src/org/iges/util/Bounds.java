@@ -77,6 +77,41 @@ public class Bounds {
 	    t = new Range.Long(bounds[6], bounds[7]);
 	    e = new Range.Long(bounds[8], bounds[9]);
 
+	    // strides are optional
+	    if (st.hasMoreTokens()) {
+		long[] strides = new long[5];
+		try {
+		    for (i = 0; i < 5; i++) {
+			strides[i] = Long.valueOf(st.nextToken()).longValue();
+		    }
+		} catch (NumberFormatException nfe) {
+		    throw new IllegalArgumentException("invalid number format in bounds expression (stride " + (i+1) +")");
+		} catch (NoSuchElementException nsee) {
+		    throw new IllegalArgumentException("not enough strides in bounds expression");
+		}
+		setStrides(strides[0], strides[1], strides[2], 
+			   strides[3], strides[4]);
+	    }
+	}
+
+	/** Sets the strides for each dimension. A stride of n selects
+	 *  every nth point, starting at the minimum of the range. */
+	public void setStrides(long xStride, 
+			       long yStride, 
+			       long zStride, 
+			       long tStride, 
+			       long eStride) {
+	    this.xStride = xStride;
+	    this.yStride = yStride;
+	    this.zStride = zStride;
+	    this.tStride = tStride;
+	    this.eStride = eStride;
+	}
+
+	/** Returns true if any dimension has a stride other than 1 */
+	public boolean hasStrides() {
+	    return xStride != 1 || yStride != 1 || zStride != 1 || 
+		tStride != 1 || eStride != 1;
 	}
 
 	public boolean equals(Bounds.Grid grid) {
@@ -84,10 +119,46 @@ public class Bounds {
 		    && this.y.equals(grid.y)
 		    && this.z.equals(grid.z)
 		    && this.t.equals(grid.t)
-		    && this.e.equals(grid.e));
+		    && this.e.equals(grid.e)
+		    && this.xStride == grid.xStride
+		    && this.yStride == grid.yStride
+		    && this.zStride == grid.zStride
+		    && this.tStride == grid.tStride
+		    && this.eStride == grid.eStride);
+	}
+
+
+
+	/** Tests whether every point of the grid given is also a point
+	 *  of this one, taking strides into account */
+	public boolean contains(Bounds.Grid grid) {
+	    return (contains(this.x, this.xStride, grid.x, grid.xStride)
+		    && contains(this.y, this.yStride, grid.y, grid.yStride)
+		    && contains(this.z, this.zStride, grid.z, grid.zStride)
+		    && contains(this.t, this.tStride, grid.t, grid.tStride)
+		    && contains(this.e, this.eStride, grid.e, grid.eStride));
 	}
 
+	protected static boolean contains(Range.Long outer, long outerStride,
+					  Range.Long inner, long innerStride) {
+	    long innerLast = last(inner, innerStride);
+	    if (inner.min < outer.min || 
+		innerLast > last(outer, outerStride) ||
+		(inner.min - outer.min) % outerStride != 0) {
+		return false;
+	    }
+	    return inner.min == innerLast || innerStride % outerStride == 0;
+	}
 
+	/** Returns the last point selected from a range */
+	protected static long last(Range.Long range, long stride) {
+	    return range.min + ((range.max - range.min) / stride) * stride;
+	}
+
+	/** Returns the number of points selected from a range */
+	public static long count(Range.Long range, long stride) {
+	    return (Math.abs(range.max - range.min) / stride) + 1;
+	}
 
 	public Bounds.Grid union(Bounds.Grid grid) {
 	    return new Bounds.Grid(this.x.union(grid.x),
@@ -99,11 +170,11 @@ public class Bounds {
 
 	/** Calculates the number of points in the grid (not size in bytes) */
 	public long getSize() {
-	    return (Math.abs(x.max - x.min) + 1) 
-		* (Math.abs(y.max - y.min) + 1)
-		* (Math.abs(z.max - z.min) + 1)
-		* (Math.abs(t.max - t.min) + 1)
-		* (Math.abs(e.max - e.min) + 1);
+	    return count(x, xStride)
+		* count(y, yStride)
+		* count(z, zStride)
+		* count(t, tStride)
+		* count(e, eStride);
 	}
 
 
@@ -113,6 +184,12 @@ public class Bounds {
 	public Range.Long t;
 	public Range.Long e;
 
+	public long xStride = 1;
+	public long yStride = 1;
+	public long zStride = 1;
+	public long tStride = 1;
+	public long eStride = 1;
+
 	/** Returns a string representation of the grid bounds, with the indexes offset
 	 * by one, because GrADS uses one-based array indexing. */
 	public String toGradsString() {
@@ -129,9 +206,10 @@ public class Bounds {
 	}
 
 	/** Returns a string representation of the grid bounds. This representation
-	 * can be used to create a new Bounds.Grid object. */
+	 * can be used to create a new Bounds.Grid object. The strides are
+	 * only included if there are any. */
 	public String toString() {
-	    return x.min + " " 
+	    String s = x.min + " " 
 		+ x.max + " " 
 		+ y.min + " " 
 		+ y.max + " " 
@@ -141,6 +219,14 @@ public class Bounds {
 		+ t.max + " " 
 		+ e.min + " " 
 		+ e.max;
+	    if (hasStrides()) {
+		s += " " + xStride 
+		    + " " + yStride 
+		    + " " + zStride 
+		    + " " + tStride 
+		    + " " + eStride;
+	    }
+	    return s;
 	}
 
     }
@@ -0,0 +1,111 @@
+/* Copyright (C) 2000-2021 by George Mason University.
+*  Authored by Joe Wielgosz and maintained by Jennifer Adams.
+*  See file COPYRIGHT for more information.
+*/
+package org.iges.util;
+
+/** Combines the checksums of two pieces of data into the checksum of
+ *  the two joined together, without reading the data again. These
+ *  are the algorithms used by adler32_combine() and crc32_combine()
+ *  in zlib.
+ */
+public class Checksums {
+
+    /** Returns the Adler-32 checksum of two pieces of data joined
+     *  together.
+     * @param adler1 Checksum of the first piece
+     * @param adler2 Checksum of the second piece
+     * @param length2 Length of the second piece
+     */
+    public static long combineAdler32(long adler1, long adler2,
+				      long length2) {
+	long rem = length2 % ADLER_BASE;
+	long sum1 = adler1 & 0xffff;
+	long sum2 = (rem * sum1) % ADLER_BASE;
+	sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+	sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) +
+	    ADLER_BASE - rem;
+	if (sum1 >= ADLER_BASE) {
+	    sum1 -= ADLER_BASE;
+	}
+	if (sum1 >= ADLER_BASE) {
+	    sum1 -= ADLER_BASE;
+	}
+	if (sum2 >= (ADLER_BASE << 1)) {
+	    sum2 -= (ADLER_BASE << 1);
+	}
+	if (sum2 >= ADLER_BASE) {
+	    sum2 -= ADLER_BASE;
+	}
+	return sum1 | (sum2 << 16);
+    }
+
+    /** Returns the CRC-32 checksum of two pieces of data joined
+     *  together.
+     * @param crc1 Checksum of the first piece
+     * @param crc2 Checksum of the second piece
+     * @param length2 Length of the second piece
+     */
+    public static long combineCRC32(long crc1, long crc2, long length2) {
+	if (length2 <= 0) {
+	    return crc1;
+	}
+
+	// operator for one zero bit, then for two and four zero bits
+	long[] odd = new long[32];
+	long[] even = new long[32];
+	odd[0] = CRC_POLYNOMIAL;
+	long row = 1;
+	for (int n = 1; n < 32; n++) {
+	    odd[n] = row;
+	    row <<= 1;
+	}
+	square(even, odd);
+	square(odd, even);
+
+	// apply length2 zero bytes to crc1, squaring the operator for
+	// each bit of the length
+	do {
+	    square(even, odd);
+	    if ((length2 & 1) != 0) {
+		crc1 = times(even, crc1);
+	    }
+	    length2 >>= 1;
+	    if (length2 == 0) {
+		break;
+	    }
+	    square(odd, even);
+	    if ((length2 & 1) != 0) {
+		crc1 = times(odd, crc1);
+	    }
+	    length2 >>= 1;
+	} while (length2 != 0);
+
+	return crc1 ^ crc2;
+    }
+
+    protected static long times(long[] matrix, long vector) {
+	long sum = 0;
+	int i = 0;
+	while (vector != 0) {
+	    if ((vector & 1) != 0) {
+		sum ^= matrix[i];
+	    }
+	    vector >>= 1;
+	    i++;
+	}
+	return sum;
+    }
+
+    protected static void square(long[] square, long[] matrix) {
+	for (int n = 0; n < 32; n++) {
+	    square[n] = times(matrix, matrix[n]);
+	}
+    }
+
+    protected static final long ADLER_BASE = 65521;
+
+    /** The CRC-32 polynomial, in reversed bit order */
+    protected static final long CRC_POLYNOMIAL = 0xedb88320L;
+
+}
@@ -0,0 +1,212 @@
+/* Copyright (C) 2000-2021 by George Mason University.
+*  Authored by Joe Wielgosz and maintained by Jennifer Adams.
+*  See file COPYRIGHT for more information.
+*/
+package org.iges.util;
+
+import java.io.*;
+import java.util.zip.*;
+
+/** A compressed copy of a cached file, kept next to the file so that
+ *  it only has to be compressed once. The copy holds raw deflate
+ *  data ending in a sync flush, followed by the length and the
+ *  Adler-32 and CRC-32 checksums of the original data. It can
+ *  therefore be sent as part of either a zlib or a gzip stream (see
+ *  ParallelDeflaterOutputStream.writeDeflated()). <p>
+ *
+ *  The copy is made again if the file has been modified since. A
+ *  DeflatedFile keeps the copy open from the time it is obtained, so
+ *  that it still reads the same copy if another request replaces or
+ *  deletes it in the meantime. It must be closed after use.
+ */
+public class DeflatedFile {
+
+    /** Copies a cached file to a stream. If the stream is a
+     *  ParallelDeflaterOutputStream, the compressed copy of the file is
+     *  sent instead, and is created first if necessary. */
+    public static void spool(File file, OutputStream out)
+	throws IOException {
+
+	if (out instanceof ParallelDeflaterOutputStream) {
+	    ParallelDeflaterOutputStream compressor =
+		(ParallelDeflaterOutputStream)out;
+	    DeflatedFile deflated = get(file, compressor.getLevel());
+	    try {
+		compressor.writeDeflated(deflated);
+	    } finally {
+		deflated.close();
+	    }
+	    return;
+	}
+	InputStream in = new BufferedInputStream(new FileInputStream(file));
+	try {
+	    Spooler.spool(in, out);
+	} finally {
+	    in.close();
+	}
+    }
+
+    /** Returns the compressed copy of a file, creating it if it
+     *  doesn't exist or is older than the file.
+     * @param level Compression level to use if the copy is created
+     * @return The copy, which the caller must close
+     */
+    public static DeflatedFile get(File file, int level)
+	throws IOException {
+
+	File copy = getCopyFile(file);
+	if (!copy.exists() || copy.lastModified() < file.lastModified()) {
+	    create(file, copy, level);
+	}
+	try {
+	    return new DeflatedFile(copy);
+	} catch (FileNotFoundException fnfe) {
+	    // deleted since it was checked
+	    create(file, copy, level);
+	    return new DeflatedFile(copy);
+	}
+    }
+
+    /** Returns the name of the compressed copy of a file, which
+     *  should be deleted along with the file */
+    public static File getCopyFile(File file) {
+	return new File(file.getPath() + SUFFIX);
+    }
+
+    /** Compresses a file. The copy is written to a temporary file and
+     *  then renamed, so that other requests never see a partial
+     *  copy. */
+    protected static void create(File file, File copy, int level)
+	throws IOException {
+
+	File temp = File.createTempFile(copy.getName(), ".tmp",
+					copy.getParentFile());
+	Deflater deflater = new Deflater(level, true);
+	Adler32 adler = new Adler32();
+	CRC32 crc = new CRC32();
+	long length = 0;
+	InputStream in = new FileInputStream(file);
+	DataOutputStream out = null;
+	try {
+	    out = new DataOutputStream
+		(new BufferedOutputStream(new FileOutputStream(temp)));
+	    byte[] input = new byte[BUFFER_SIZE];
+	    byte[] output = new byte[BUFFER_SIZE];
+	    int count;
+	    while ((count = in.read(input)) > 0) {
+		adler.update(input, 0, count);
+		crc.update(input, 0, count);
+		length += count;
+		deflater.setInput(input, 0, count);
+		while (!deflater.needsInput()) {
+		    int compressed = deflater.deflate(output);
+		    out.write(output, 0, compressed);
+		}
+	    }
+	    do {
+		count = deflater.deflate(output, 0, output.length,
+					 Deflater.SYNC_FLUSH);
+		out.write(output, 0, count);
+	    } while (count == output.length);
+	    out.writeLong(length);
+	    out.writeInt((int)adler.getValue());
+	    out.writeInt((int)crc.getValue());
+	    out.close();
+	    out = null;
+	} finally {
+	    deflater.end();
+	    in.close();
+	    if (out != null) {
+		out.close();
+		temp.delete();
+	    }
+	}
+	if (!temp.renameTo(copy)) {
+	    copy.delete();
+	    if (!temp.renameTo(copy)) {
+		temp.delete();
+		throw new IOException("couldn't rename " + temp +
+				      " to " + copy);
+	    }
+	}
+    }
+
+    /** Opens an existing copy, reading the length and checksums
+     *  from its end. The copy is kept open until close() is
+     *  called. */
+    protected DeflatedFile(File file)
+	throws IOException {
+
+	this.file = file;
+	this.raf = new RandomAccessFile(file, "r");
+	try {
+	    compressedLength = raf.length() - TRAILER_SIZE;
+	    if (compressedLength < 0) {
+		throw new IOException(file + " is not a compressed copy");
+	    }
+	    raf.seek(compressedLength);
+	    length = raf.readLong();
+	    adler = raf.readInt() & 0xffffffffL;
+	    crc = raf.readInt() & 0xffffffffL;
+	} catch (IOException ioe) {
+	    raf.close();
+	    throw ioe;
+	}
+    }
+
+    /** Writes the compressed data, without the trailer */
+    public void writeTo(OutputStream out)
+	throws IOException {
+
+	raf.seek(0);
+	byte[] buffer = new byte[BUFFER_SIZE];
+	long left = compressedLength;
+	while (left > 0) {
+	    int count = raf.read(buffer, 0, (int)Math.min(left, buffer.length));
+	    if (count < 0) {
+		throw new EOFException(file + " is shorter than expected");
+	    }
+	    out.write(buffer, 0, count);
+	    left -= count;
+	}
+    }
+
+    /** Closes the copy */
+    public void close()
+	throws IOException {
+	raf.close();
+    }
+
+    /** Returns the length of the original data */
+    public long getLength() {
+	return length;
+    }
+
+    /** Returns the size of the compressed copy on disk */
+    public long getSize() {
+	return compressedLength + TRAILER_SIZE;
+    }
+
+    public long getAdler32() {
+	return adler;
+    }
+
+    public long getCRC32() {
+	return crc;
+    }
+
+    protected static final String SUFFIX = ".deflated";
+
+    /** Length and two checksums */
+    protected static final int TRAILER_SIZE = 16;
+
+    protected static final int BUFFER_SIZE = 65536;
+
+    protected File file;
+    protected RandomAccessFile raf;
+    protected long compressedLength;
+    protected long length;
+    protected long adler;
+    protected long crc;
+
+}
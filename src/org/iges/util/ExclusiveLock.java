@@ -5,6 +5,9 @@
 package org.iges.util;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 /** An extension of the thread-lock concept
  *  which supports the concept of exclusive vs non-exclusive locking. 
@@ -55,21 +58,42 @@ import java.util.*;
  *    synch.release();  // not what we wanted..
  *  }
  *  </code>
+ *
+ *  The lock is implemented with a non-fair ReentrantReadWriteLock,
+ *  which queues new non-exclusive requests behind a waiting exclusive
+ *  request. Each instance also keeps counters of how many times it has
+ *  been acquired, how long threads have waited to acquire it, and how
+ *  long it has been held, so that contended locks can be identified.
  */
 public class ExclusiveLock 
     implements Lock {
 
     /** Creates a new ExclusiveLock */
     public ExclusiveLock() {
-	this.locks = new HashSet();
+	this("");
     }
 
-    /** Creates a new ExclusiveLock with sufficient storage for 
-     *  the expected maximum number of non-exclusive locks, to prevent
-     *  frequent reallocation of internal storage.
+    /** Creates a new ExclusiveLock. Provided for compatibility;
+     *  the lock no longer needs to preallocate storage.
      */
     public ExclusiveLock(int expectedMaxLocks) {
-	locks = new HashSet(expectedMaxLocks);
+	this("");
+    }
+
+    /** Creates a new ExclusiveLock with a name, which is used to
+     *  identify it in statistics and debug output.
+     */
+    public ExclusiveLock(String name) {
+	this.name = name;
+	this.rw = new ReentrantReadWriteLock();
+	this.sharedSince = new ThreadLocal();
+	this.shared = new Counters();
+	this.exclusive = new Counters();
+    }
+
+    /** Returns the name of this lock */
+    public String getName() {
+	return name;
     }
 
     /** Obtains an exclusive lock for the current thread, 
@@ -78,32 +102,21 @@ public class ExclusiveLock
      *  from when it returns), until the resulting exclusive
      *  lock is released. If the current thread 
      *  already owns an exclusive lock, does nothing. */
-    public synchronized void lockExclusive() {
+    public void lockExclusive() {
 	if (isLockedExclusive()) {
 	    if (DEBUG) debug("already have ex lock");
 	    return;
 	}
-	while (exclusive != null) {
-	    // exclusive block already exists, wait for release
-	    if (DEBUG) debug("ex block exists for ex");
-	    try {
-		this.wait(0);
-	    } catch (InterruptedException ie) {}
-	}
-	exclusive = Thread.currentThread();
-	while (locks.size() > 0) {
-	    if (DEBUG) debug("non-ex block exists for ex");
-	    try {
-		this.wait(0);
-	    } catch (InterruptedException ie) {}
-	}
+	long start = System.nanoTime();
+	rw.writeLock().lock();
+	exclusiveAcquired(start);
 	if (DEBUG) debug("ex lock established");
     }
 	
     /** @return True if the current thread owns an exclusive
      *  lock. */
-    public synchronized boolean isLockedExclusive() {
-	return exclusive == Thread.currentThread();
+    public boolean isLockedExclusive() {
+	return rw.isWriteLockedByCurrentThread();
     }
 		
     /** Tries to obtain an exclusive lock for the current thread. 
@@ -112,15 +125,17 @@ public class ExclusiveLock
      *  already owns an exclusive lock, does nothing.
      *  @return True if the exclusive lock was succesfully obtained. 
      */
-    public synchronized boolean tryLockExclusive() {
+    public boolean tryLockExclusive() {
 	if (isLockedExclusive()) {
 	    return true;
 	}
-	if (exclusive == null && locks.size() == 0) {
-	    exclusive = Thread.currentThread();
+	long start = System.nanoTime();
+	if (rw.writeLock().tryLock()) {
+	    exclusiveAcquired(start);
 	    if (DEBUG) debug("try for ex succeeded");
 	    return true;
 	} else {
+	    exclusive.failures.incrementAndGet();
 	    if (DEBUG) debug("try for ex failed");
 	    return false;
 	}
@@ -135,110 +150,237 @@ public class ExclusiveLock
      *  exclusive lock
      *  @return True if the exclusive lock was succesfully obtained. 
      */
-    public synchronized boolean tryLockExclusive(long timeout) {
+    public boolean tryLockExclusive(long timeout) {
 	if (isLockedExclusive()) {
 	    return true;
 	}
 	if (DEBUG) debug("trying " + timeout + "ms for ex");
-	long start = System.currentTimeMillis();
-	long remaining = timeout;
-	while (remaining > 0) {
-	    if (tryLockExclusive()) {
-		return true;
+	long start = System.nanoTime();
+	long deadline = start + timeout * 1000000L;
+	boolean interrupted = false;
+	try {
+	    while (true) {
+		long remaining = deadline - System.nanoTime();
+		try {
+		    if (rw.writeLock().tryLock(Math.max(remaining, 0),
+					       TimeUnit.NANOSECONDS)) {
+			exclusiveAcquired(start);
+			return true;
+		    }
+		    break;
+		} catch (InterruptedException ie) {
+		    interrupted = true;
+		}
+	    }
+	} finally {
+	    if (interrupted) {
+		Thread.currentThread().interrupt();
 	    }
-	    if (DEBUG) debug("waiting " + remaining + "ms for ex");
-	    try {
-		this.wait(remaining);
-	    } catch (InterruptedException ie) {}
-	    remaining = timeout - (System.currentTimeMillis() - start);
 	}
+	exclusive.failures.incrementAndGet();
 	if (DEBUG) debug("timed out waiting for ex");
 	return false;
     }
 
     /** @return True if the current thread owns a non-exclusive lock. */
-    public synchronized boolean isLocked() {
-	return locks.contains(Thread.currentThread());
+    public boolean isLocked() {
+	return rw.getReadHoldCount() > 0;
     }
 	
     /** Obtains a non-exclusive lock for the current thread, 
      *  blocking until the lock is available. If the current thread already
-     *  owns a non-exclusive lock, does nothing. */
-    public synchronized void lock() {
-	if (isLocked()) {
-	    if (DEBUG) debug("already have non-ex lock");
+     *  owns a non-exclusive or exclusive lock, does nothing. */
+    public void lock() {
+	if (isLocked() || isLockedExclusive()) {
+	    if (DEBUG) debug("already have lock");
 	    return;
 	}
-	while (!tryLock()) {
-	    if (DEBUG) debug("block for non-ex");
-	    try {
-		this.wait(0);
-	    } catch (InterruptedException ie) {}
-	}
+	long start = System.nanoTime();
+	rw.readLock().lock();
+	sharedAcquired(start);
 	if (DEBUG) debug("non-ex lock established");
     }
 	
     /** Releases the current thread's lock.
      *  If the current thread does not own a lock,
      *  does nothing. */
-    public synchronized void release() {
-	if (exclusive == Thread.currentThread()) {
-	    exclusive = null;
-	    if (DEBUG) debug("ex lock released; locks.size = " + locks.size());
-	    this.notifyAll();
-	} else {
-	    locks.remove(Thread.currentThread());
-	    if (DEBUG) debug("non-ex lock released; locks.size = " + locks.size());
-	    if (locks.size() == 0) {
-		this.notifyAll();
-	    }
+    public void release() {
+	if (isLockedExclusive()) {
+	    exclusive.held.addAndGet(System.nanoTime() - exclusiveSince);
+	    rw.writeLock().unlock();
+	    if (DEBUG) debug("ex lock released");
+	} else if (isLocked()) {
+	    long[] since = (long[])sharedSince.get();
+	    shared.held.addAndGet(System.nanoTime() - since[0]);
+	    rw.readLock().unlock();
+	    if (DEBUG) debug("non-ex lock released; locks = " +
+			     rw.getReadLockCount());
 	}
     }
 	
     /** Tries to obtain a non-exclusive lock for the current thread. 
      *  This method always returns immediately but does not 
      *  guarantee that the lock will be obtained. If the current thread 
-     *  already owns a non-exclusive lock, does nothing.
+     *  already owns a non-exclusive or exclusive lock, does nothing.
      *  @return True if a non-exclusive was succesfully obtained. 
      */
-    public synchronized boolean tryLock() {
-	if (isLocked()) {
+    public boolean tryLock() {
+	if (isLocked() || isLockedExclusive()) {
 	    return true;
 	}
-	if (exclusive == null) {
-	    locks.add(Thread.currentThread());
+	long start = System.nanoTime();
+	if (rw.readLock().tryLock()) {
+	    sharedAcquired(start);
 	    return true;
 	} else {
+	    shared.failures.incrementAndGet();
 	    return false;
 	}
     }
 
-    /** Prints a list of the threads that currently own locks on this 
-     *  object. */
-    public synchronized String toString() {
+    /** Returns the number of non-exclusive locks granted so far */
+    public long getSharedAcquisitions() {
+	return shared.acquisitions.get();
+    }
+
+    /** Returns the number of exclusive locks granted so far */
+    public long getExclusiveAcquisitions() {
+	return exclusive.acquisitions.get();
+    }
+
+    /** Returns the total time in milliseconds that threads have spent
+     *  waiting for non-exclusive locks */
+    public long getSharedWaitTime() {
+	return shared.waited.get() / 1000000L;
+    }
+
+    /** Returns the total time in milliseconds that threads have spent
+     *  waiting for exclusive locks */
+    public long getExclusiveWaitTime() {
+	return exclusive.waited.get() / 1000000L;
+    }
+
+    /** Returns the longest time in milliseconds that a thread has
+     *  waited for a non-exclusive lock */
+    public long getMaxSharedWaitTime() {
+	return shared.maxWaited.get() / 1000000L;
+    }
+
+    /** Returns the longest time in milliseconds that a thread has
+     *  waited for an exclusive lock */
+    public long getMaxExclusiveWaitTime() {
+	return exclusive.maxWaited.get() / 1000000L;
+    }
+
+    /** Returns the total time in milliseconds that non-exclusive locks
+     *  have been held, counting each thread separately */
+    public long getSharedHoldTime() {
+	return shared.held.get() / 1000000L;
+    }
+
+    /** Returns the total time in milliseconds that exclusive locks
+     *  have been held */
+    public long getExclusiveHoldTime() {
+	return exclusive.held.get() / 1000000L;
+    }
+
+    /** Returns the number of attempts to obtain an exclusive lock that
+     *  failed or timed out */
+    public long getExclusiveFailures() {
+	return exclusive.failures.get();
+    }
+
+    /** Returns the number of threads currently waiting for this lock */
+    public int getQueueLength() {
+	return rw.getQueueLength();
+    }
+
+    /** Returns a one-line summary of the usage statistics for this lock */
+    public String getStatistics() {
 	StringBuffer sb = new StringBuffer();
-	sb.append(hashCode());
-	Iterator it = locks.iterator();
-	if (exclusive != null) {
-	    sb.append(" ex = ");
-	    sb.append(exclusive.getName());
-	} else if (locks.size() > 0) {
-	    sb.append(" non-ex = [ ");
-	    while (it.hasNext()) {
-		sb.append(((Thread)it.next()).getName());
-		sb.append(" ");
-	    }
-	    sb.append("]");
+	sb.append(name);
+	sb.append(": non-ex ");
+	shared.append(sb);
+	sb.append("; ex ");
+	exclusive.append(sb);
+	sb.append("; queued ");
+	sb.append(getQueueLength());
+	return sb.toString();
+    }
+
+    /** Prints the name of this lock, and the locks that are currently
+     *  held on it. */
+    public String toString() {
+	StringBuffer sb = new StringBuffer();
+	sb.append(name.equals("") ? String.valueOf(hashCode()) : name);
+	if (rw.isWriteLocked()) {
+	    sb.append(" ex");
+	} else if (rw.getReadLockCount() > 0) {
+	    sb.append(" non-ex = ");
+	    sb.append(rw.getReadLockCount());
 	} else {
 	    sb.append(" no locks");
 	}
 	return sb.toString();
     }
     
-    protected Thread exclusive;
-    protected Set locks;
+    protected void exclusiveAcquired(long start) {
+	exclusiveSince = System.nanoTime();
+	exclusive.acquired(exclusiveSince - start);
+    }
 
+    protected void sharedAcquired(long start) {
+	long[] since = (long[])sharedSince.get();
+	if (since == null) {
+	    since = new long[1];
+	    sharedSince.set(since);
+	}
+	since[0] = System.nanoTime();
+	shared.acquired(since[0] - start);
+    }
     
+    /** Usage statistics for one mode of the lock */
+    protected static class Counters {
+
+	protected void acquired(long wait) {
+	    acquisitions.incrementAndGet();
+	    waited.addAndGet(wait);
+	    long max = maxWaited.get();
+	    while (wait > max && !maxWaited.compareAndSet(max, wait)) {
+		max = maxWaited.get();
+	    }
+	}
+
+	protected void append(StringBuffer sb) {
+	    sb.append(acquisitions.get());
+	    sb.append(" acquired, ");
+	    sb.append(waited.get() / 1000000L);
+	    sb.append("ms waited (max ");
+	    sb.append(maxWaited.get() / 1000000L);
+	    sb.append("ms), ");
+	    sb.append(held.get() / 1000000L);
+	    sb.append("ms held, ");
+	    sb.append(failures.get());
+	    sb.append(" failed");
+	}
+
+	protected AtomicLong acquisitions = new AtomicLong();
+	protected AtomicLong waited = new AtomicLong();
+	protected AtomicLong maxWaited = new AtomicLong();
+	protected AtomicLong held = new AtomicLong();
+	protected AtomicLong failures = new AtomicLong();
+    }
+
+    protected String name;
+    protected ReentrantReadWriteLock rw;
+
+    /** Only written by the thread that holds the exclusive lock */
+    protected long exclusiveSince;
+    /** Holds a long[1] with the time each thread got its lock */
+    protected ThreadLocal sharedSince;
+
+    protected Counters shared;
+    protected Counters exclusive;
 
     //    private static boolean DEBUG = false;
     private static boolean DEBUG = false;
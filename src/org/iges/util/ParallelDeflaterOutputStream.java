@@ -0,0 +1,374 @@
+/* Copyright (C) 2000-2021 by George Mason University.
+*  Authored by Joe Wielgosz and maintained by Jennifer Adams.
+*  See file COPYRIGHT for more information.
+*/
+package org.iges.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/** Compresses a stream in zlib ("deflate") or gzip format, using
+ *  several threads. The data is split into blocks of a fixed size,
+ *  which are compressed independently on a thread pool and written
+ *  out in order, in the same way as pigz. Each block is compressed
+ *  using the end of the previous block as a dictionary, so the
+ *  compression ratio is close to that of a single Deflater. <p>
+ *
+ *  Blocks are compressed on the calling thread until a certain amount
+ *  of data has been written, so that small streams don't pay the
+ *  cost of handing blocks to the pool. The checksum in the trailer is
+ *  always calculated on the calling thread. <p>
+ *
+ *  Data that was compressed in advance can be inserted into the
+ *  stream with writeDeflated(), and the checksums are combined
+ *  without reading it again. <p>
+ *
+ *  flush() only writes out blocks that have already been compressed;
+ *  it doesn't force the end of a block, since that would make the
+ *  compression worse. finish() must be called to complete the stream.
+ */
+public class ParallelDeflaterOutputStream
+    extends FilterOutputStream {
+
+    /** Creates a compressing stream.
+     * @param out The stream to write compressed data to
+     * @param gzip If true, write gzip format; if false, zlib format
+     * @param level Compression level, from 0 to 9, or -1 for the
+     * default level
+     * @param blockSize Amount of data compressed by each task
+     * @param threshold Amount of data to compress on the calling
+     * thread before the pool is used
+     * @param pool Pool to run compression tasks on, or null to
+     * compress everything on the calling thread
+     * @param maxPending Maximum number of blocks that may be waiting
+     * to be compressed or written
+     */
+    public ParallelDeflaterOutputStream(OutputStream out,
+					boolean gzip,
+					int level,
+					int blockSize,
+					long threshold,
+					ExecutorService pool,
+					int maxPending)
+	throws IOException {
+
+	super(out);
+	this.gzip = gzip;
+	this.level = level;
+	this.blockSize = Math.max(blockSize, DICTIONARY_SIZE);
+	this.threshold = threshold;
+	this.pool = pool;
+	this.maxPending = Math.max(maxPending, 1);
+	this.pending = new LinkedList();
+	this.checksum = (gzip) ? (Checksum)new CRC32() : new Adler32();
+	this.combinedChecksum = checksum.getValue();
+	this.block = new byte[this.blockSize];
+	writeHeader();
+    }
+
+    public void write(int b)
+	throws IOException {
+	write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len)
+	throws IOException {
+
+	if (finished) {
+	    throw new IOException("write past end of compressed stream");
+	}
+	checksum.update(b, off, len);
+	checksumLength += len;
+	total += len;
+	while (len > 0) {
+	    int chunk = Math.min(len, block.length - blockLength);
+	    System.arraycopy(b, off, block, blockLength, chunk);
+	    blockLength += chunk;
+	    off += chunk;
+	    len -= chunk;
+	    if (blockLength == block.length) {
+		endBlock(false);
+	    }
+	}
+    }
+
+    /** Writes data that has already been compressed into the stream,
+     *  after the data written so far. */
+    public void writeDeflated(DeflatedFile deflated)
+	throws IOException {
+
+	if (finished) {
+	    throw new IOException("write past end of compressed stream");
+	}
+	if (blockLength > 0) {
+	    endBlock(false);
+	}
+	while (pending.size() > 0) {
+	    writeNext();
+	}
+	deflated.writeTo(out);
+
+	long sum = gzip ? deflated.getCRC32() : deflated.getAdler32();
+	combinedChecksum = combine(combine(combinedChecksum, 
+					   checksum.getValue(), 
+					   checksumLength),
+				   sum, 
+				   deflated.getLength());
+	checksum.reset();
+	checksumLength = 0;
+	total += deflated.getLength();
+	// the next block can't refer back into data that isn't in memory
+	dictionary = null;
+    }
+
+    /** Writes out the blocks that have already been compressed */
+    public void flush()
+	throws IOException {
+
+	while (pending.size() > 0 &&
+	       ((Future)pending.getFirst()).isDone()) {
+	    writeNext();
+	}
+	out.flush();
+    }
+
+    /** Compresses the remaining data and writes the trailer, without
+     *  closing the underlying stream */
+    public void finish()
+	throws IOException {
+
+	if (finished) {
+	    return;
+	}
+	endBlock(true);
+	while (pending.size() > 0) {
+	    writeNext();
+	}
+	writeTrailer();
+	finished = true;
+    }
+
+    public void close()
+	throws IOException {
+	try {
+	    finish();
+	} finally {
+	    out.close();
+	}
+    }
+
+    /** Returns the compression level */
+    public int getLevel() {
+	return level;
+    }
+
+    /** Returns the number of blocks that were compressed on the pool */
+    public int getParallelBlocks() {
+	return parallelBlocks;
+    }
+
+    /** Starts compressing the current block, and starts a new one */
+    protected void endBlock(boolean last)
+	throws IOException {
+
+	final byte[] input = block;
+	final int length = blockLength;
+	final byte[] dictionary = this.dictionary;
+	final boolean finish = last;
+
+	// the end of this block is the dictionary for the next
+	if (!last) {
+	    int dictionaryLength = Math.min(length, DICTIONARY_SIZE);
+	    this.dictionary = new byte[dictionaryLength];
+	    System.arraycopy(input, length - dictionaryLength,
+			     this.dictionary, 0, dictionaryLength);
+	    block = new byte[blockSize];
+	    blockLength = 0;
+	}
+
+	Callable task = new Callable() {
+		public Object call() throws Exception {
+		    return compress(input, length, dictionary, finish);
+		}
+	    };
+
+	if (pool == null || total - length < threshold) {
+	    FutureTask inline = new FutureTask(task);
+	    inline.run();
+	    pending.addLast(inline);
+	} else {
+	    try {
+		pending.addLast(pool.submit(task));
+		parallelBlocks++;
+	    } catch (RejectedExecutionException ree) {
+		// the pool has been shut down
+		FutureTask inline = new FutureTask(task);
+		inline.run();
+		pending.addLast(inline);
+	    }
+	}
+
+	while (pending.size() > maxPending ||
+	       (pending.size() > 0 &&
+		((Future)pending.getFirst()).isDone())) {
+	    writeNext();
+	}
+    }
+
+    /** Waits for the oldest block to be compressed, and writes it */
+    protected void writeNext()
+	throws IOException {
+
+	Future next = (Future)pending.removeFirst();
+	byte[] compressed;
+	boolean interrupted = false;
+	try {
+	    while (true) {
+		try {
+		    compressed = (byte[])next.get();
+		    break;
+		} catch (InterruptedException ie) {
+		    interrupted = true;
+		}
+	    }
+	} catch (ExecutionException ee) {
+	    IOException ioe = new IOException("compression failed");
+	    ioe.initCause(ee.getCause());
+	    throw ioe;
+	} finally {
+	    if (interrupted) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	out.write(compressed);
+    }
+
+    /** Compresses a block as raw deflate data. Every block but the
+     *  last ends with a sync flush, so that the next block starts on a
+     *  byte boundary. */
+    protected byte[] compress(byte[] input,
+			      int length,
+			      byte[] dictionary,
+			      boolean last) {
+
+	Deflater deflater = new Deflater(level, true);
+	try {
+	    if (dictionary != null) {
+		deflater.setDictionary(dictionary);
+	    }
+	    deflater.setInput(input, 0, length);
+	    ByteArrayOutputStream result =
+		new ByteArrayOutputStream(length / 2 + 64);
+	    byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+	    if (last) {
+		deflater.finish();
+		while (!deflater.finished()) {
+		    int count = deflater.deflate(buffer);
+		    result.write(buffer, 0, count);
+		}
+	    } else {
+		int count;
+		do {
+		    count = deflater.deflate(buffer, 0, buffer.length,
+					     Deflater.SYNC_FLUSH);
+		    result.write(buffer, 0, count);
+		} while (count == buffer.length);
+	    }
+	    return result.toByteArray();
+	} finally {
+	    deflater.end();
+	}
+    }
+
+    protected void writeHeader()
+	throws IOException {
+
+	if (gzip) {
+	    out.write(GZIP_HEADER);
+	} else {
+	    // the level flags are only informative, but are set the way
+	    // zlib sets them
+	    int flags;
+	    if (level == Deflater.DEFAULT_COMPRESSION || level == 6) {
+		flags = 2;
+	    } else if (level < 2) {
+		flags = 0;
+	    } else if (level < 6) {
+		flags = 1;
+	    } else {
+		flags = 3;
+	    }
+	    int header = (0x78 << 8) | (flags << 6);
+	    header += 31 - (header % 31);
+	    out.write(header >> 8);
+	    out.write(header & 0xff);
+	}
+    }
+
+    protected void writeTrailer()
+	throws IOException {
+
+	long sum = combine(combinedChecksum, 
+			   checksum.getValue(), 
+			   checksumLength);
+	if (gzip) {
+	    writeLittleEndian(sum);
+	    writeLittleEndian(total);
+	} else {
+	    out.write((int)(sum >> 24) & 0xff);
+	    out.write((int)(sum >> 16) & 0xff);
+	    out.write((int)(sum >> 8) & 0xff);
+	    out.write((int)sum & 0xff);
+	}
+    }
+
+    /** Combines the checksums of two consecutive pieces of data */
+    protected long combine(long sum1, long sum2, long length2) {
+	return gzip ? 
+	    Checksums.combineCRC32(sum1, sum2, length2) :
+	    Checksums.combineAdler32(sum1, sum2, length2);
+    }
+
+    /** Writes the low 32 bits of a value in little-endian order */
+    protected void writeLittleEndian(long value)
+	throws IOException {
+	out.write((int)value & 0xff);
+	out.write((int)(value >> 8) & 0xff);
+	out.write((int)(value >> 16) & 0xff);
+	out.write((int)(value >> 24) & 0xff);
+    }
+
+    /** The largest dictionary deflate can use */
+    protected static final int DICTIONARY_SIZE = 32768;
+
+    protected static final int OUTPUT_BUFFER_SIZE = 65536;
+
+    /** Header with no file name or modification time */
+    protected static final byte[] GZIP_HEADER = {
+	(byte)0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff
+    };
+
+    protected boolean gzip;
+    protected int level;
+    protected int blockSize;
+    protected long threshold;
+    protected ExecutorService pool;
+    protected int maxPending;
+
+    /** Checksum of the data written since the last call to
+     *  writeDeflated() */
+    protected Checksum checksum;
+    protected long checksumLength;
+    /** Checksum of the data up to the last call to writeDeflated() */
+    protected long combinedChecksum;
+    protected long total;
+    protected byte[] block;
+    protected int blockLength;
+    protected byte[] dictionary;
+    protected LinkedList pending;
+    protected int parallelBlocks;
+    protected boolean finished;
+
+}
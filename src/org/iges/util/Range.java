@@ -75,6 +75,10 @@ public class Range{
 	    return (range.min <= this.max) && (range.max >= this.min);
 	}
 
+	public boolean equals(Range.Long range) {
+	    return (this.min == range.min) && (this.max == range.max);
+	}
+
 	public Range.Long union(Range.Long range) {
 	    return new Range.Long(Math.min(this.min, range.min),
 			     Math.max(this.max, range.max));
@@ -0,0 +1,92 @@
+/* Copyright (C) 2000-2021 by George Mason University.
+*  Authored by Joe Wielgosz and maintained by Jennifer Adams.
+*  See file COPYRIGHT for more information.
+*/
+package org.iges.util;
+
+import java.io.*;
+
+/** Passes on only a range of the bytes written to it, as needed to
+ *  answer an HTTP Range request. The stream keeps track of its
+ *  position in the complete data, so a writer that knows the layout
+ *  of the data can call skip() instead of producing bytes that fall
+ *  outside the range.
+ */
+public class RangeOutputStream
+    extends FilterOutputStream {
+
+    /** Creates a stream that passes on a range of bytes.
+     * @param out The stream to write the bytes in the range to
+     * @param first Position of the first byte to pass on
+     * @param last Position of the last byte to pass on
+     */
+    public RangeOutputStream(OutputStream out, long first, long last) {
+	super(out);
+	this.first = first;
+	this.last = last;
+    }
+
+    public void write(int b)
+	throws IOException {
+
+	if (position >= first && position <= last) {
+	    out.write(b);
+	}
+	position++;
+    }
+
+    public void write(byte[] b, int off, int len)
+	throws IOException {
+
+	long start = Math.max(position, first);
+	long end = Math.min(position + len, last + 1);
+	if (start < end) {
+	    out.write(b, off + (int)(start - position), (int)(end - start));
+	}
+	position += len;
+    }
+
+    /** Moves the position forward without writing anything. The
+     *  bytes skipped must not overlap the range.
+     * @throws IOException if they overlap the range
+     */
+    public void skip(long length)
+	throws IOException {
+
+	if (overlaps(position, length)) {
+	    throw new IOException("can't skip bytes " + position + "-" +
+				  (position + length - 1) +
+				  " of range " + first + "-" + last);
+	}
+	position += length;
+    }
+
+    /** Returns true if any of the bytes at the positions given are
+     *  in the range */
+    public boolean overlaps(long start, long length) {
+	return length > 0 && start <= last && start + length > first;
+    }
+
+    /** Returns the number of bytes still to be written before the
+     *  range starts */
+    public long getBytesBefore() {
+	return Math.max(first - position, 0);
+    }
+
+    /** Returns the number of bytes of the range still to be
+     *  written */
+    public long getBytesLeft() {
+	return Math.max(last + 1 - Math.max(position, first), 0);
+    }
+
+    /** Returns the position of the next byte to be written, within
+     *  the complete data */
+    public long getPosition() {
+	return position;
+    }
+
+    protected long first;
+    protected long last;
+    protected long position;
+
+}
@@ -0,0 +1,161 @@
+/* Copyright (C) 2000-2021 by George Mason University.
+*  Authored by Joe Wielgosz and maintained by Jennifer Adams.
+*  See file COPYRIGHT for more information.
+*/
+package org.iges.util;
+
+import java.io.*;
+
+/** Reads a smaller hyperslab out of a file containing a larger one.
+ *  The file must hold the values of the larger hyperslab in the order
+ *  E, T, Z, Y, X, with X varying fastest, and no other data. The
+ *  stream produces the values of the smaller hyperslab in the same
+ *  order, as though it had been written to a file of its own. <p>
+ *
+ *  Either hyperslab may have strides, as long as every point of the
+ *  smaller one is a point of the larger one.
+ */
+public class SliceInputStream
+    extends InputStream {
+
+    /** Opens a slice of a file.
+     * @param file File containing the larger hyperslab
+     * @param outer Bounds of the hyperslab in the file
+     * @param inner Bounds of the hyperslab to read, which must lie
+     * within the outer bounds
+     * @param valueSize Size of each value in bytes
+     */
+    public SliceInputStream(File file,
+			    Bounds.Grid outer,
+			    Bounds.Grid inner,
+			    int valueSize) 
+	throws IOException {
+
+	if (!outer.contains(inner)) {
+	    throw new IllegalArgumentException("slice " + inner + 
+					       " is outside " + outer);
+	}
+	this.raf = new RandomAccessFile(file, "r");
+	this.outer = outer;
+	this.inner = inner;
+	this.valueSize = valueSize;
+
+	// each row is read in one piece, from its first value to its last
+	int rowCount = (int)Bounds.Grid.count(inner.x, inner.xStride);
+	this.xStep = (int)(inner.xStride / outer.xStride);
+	this.spanBuffer = new byte[((rowCount - 1) * xStep + 1) * valueSize];
+	this.rowBuffer = (xStep == 1) ? 
+	    spanBuffer : new byte[rowCount * valueSize];
+
+	this.e = inner.e.min;
+	this.t = inner.t.min;
+	this.z = inner.z.min;
+	this.y = inner.y.min;
+	this.pos = 0;
+	this.rowBytes = 0;
+	this.done = false;
+    }
+
+    public int read() 
+	throws IOException {
+
+	if (pos == rowBytes && !nextRow()) {
+	    return -1;
+	}
+	return rowBuffer[pos++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) 
+	throws IOException {
+
+	if (len == 0) {
+	    return 0;
+	}
+	if (pos == rowBytes && !nextRow()) {
+	    return -1;
+	}
+	int count = Math.min(len, rowBytes - pos);
+	System.arraycopy(rowBuffer, pos, b, off, count);
+	pos += count;
+	return count;
+    }
+
+    public void close() 
+	throws IOException {
+	raf.close();
+    }
+
+    /** Reads the next row of the slice 
+     * @return false if there are no more rows
+     */
+    protected boolean nextRow() 
+	throws IOException {
+
+	if (done) {
+	    return false;
+	}
+	long index = index(e, outer.e, outer.eStride);
+	index = index * Bounds.Grid.count(outer.t, outer.tStride) + 
+	    index(t, outer.t, outer.tStride);
+	index = index * Bounds.Grid.count(outer.z, outer.zStride) + 
+	    index(z, outer.z, outer.zStride);
+	index = index * Bounds.Grid.count(outer.y, outer.yStride) + 
+	    index(y, outer.y, outer.yStride);
+	index = index * Bounds.Grid.count(outer.x, outer.xStride) + 
+	    index(inner.x.min, outer.x, outer.xStride);
+	raf.seek(index * valueSize);
+	raf.readFully(spanBuffer);
+
+	if (xStep > 1) {
+	    int step = xStep * valueSize;
+	    int out = 0;
+	    for (int in = 0; in < spanBuffer.length; in += step) {
+		System.arraycopy(spanBuffer, in, rowBuffer, out, valueSize);
+		out += valueSize;
+	    }
+	}
+	pos = 0;
+	rowBytes = rowBuffer.length;
+
+	// advance the row indices, innermost first
+	y += inner.yStride;
+	if (y > inner.y.max) {
+	    y = inner.y.min;
+	    z += inner.zStride;
+	    if (z > inner.z.max) {
+		z = inner.z.min;
+		t += inner.tStride;
+		if (t > inner.t.max) {
+		    t = inner.t.min;
+		    e += inner.eStride;
+		    if (e > inner.e.max) {
+			done = true;
+		    }
+		}
+	    }
+	}
+	return true;
+    }
+
+    /** Returns the position of a point within a strided range */
+    protected long index(long value, Range.Long range, long stride) {
+	return (value - range.min) / stride;
+    }
+
+    protected RandomAccessFile raf;
+    protected Bounds.Grid outer;
+    protected Bounds.Grid inner;
+    protected int valueSize;
+    protected int xStep;
+    protected byte[] spanBuffer;
+    protected byte[] rowBuffer;
+
+    protected long e;
+    protected long t;
+    protected long z;
+    protected long y;
+    protected int pos;
+    protected int rowBytes;
+    protected boolean done;
+
+}
@@ -109,6 +109,29 @@ public class Spooler {
 	return totalBytesWritten;
     }
 
+    /** Skips a fixed number of bytes of an InputStream. If skip()
+     *  makes no progress, a byte is read instead, so that the end of
+     *  the stream is detected.
+     * @throws EOFException If the stream ends before
+     * <code>bytesToSkip</code> bytes have been skipped.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void skipFully(InputStream in, long bytesToSkip)
+	throws IOException {
+
+	while (bytesToSkip > 0) {
+	    long skipped = in.skip(bytesToSkip);
+	    if (skipped <= 0) {
+		if (in.read() < 0) {
+		    throw new EOFException("ran out of input while skipping " +
+					   bytesToSkip + " bytes");
+		}
+		skipped = 1;
+	    }
+	    bytesToSkip -= skipped;
+	}
+    }
+
     /** Spools a fixed quantity of byte data from an 
      *  InputStream to an OutputStream.
      * @param totalBytesToWrite The number of bytes that should be read. 